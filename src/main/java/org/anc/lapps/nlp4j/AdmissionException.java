@@ -0,0 +1,24 @@
+package org.anc.lapps.nlp4j;
+
+/**
+ * Thrown by the {@link ResourceGovernor} when a request can not be given the models
+ * and lexica it asks for, either because they would not fit in the memory budget or
+ * because they could not be loaded. The message is meant to be wrapped in an error
+ * {@code Data} object and returned to the user.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class AdmissionException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public AdmissionException(String message)
+    {
+        super(message);
+    }
+
+    public AdmissionException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
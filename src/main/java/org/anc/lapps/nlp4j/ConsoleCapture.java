@@ -0,0 +1,213 @@
+package org.anc.lapps.nlp4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+
+/**
+ * Catches what NLP4J prints to {@code System.out} while a request is decoded, so that it
+ * does not end up on the console of the server.
+ * <p>
+ * The printed text is either kept, to be returned with the output as "Printed", or thrown
+ * away as it is written when the request does not want it. Requests run side by side, so
+ * {@code System.out} is not swapped for each of them: it is replaced once, by {@link #install()}
+ * when the service is created, with a stream that sends what each thread prints to the capture
+ * open on that thread, or to the console if there is none. {@link #uninstall()} puts the console
+ * back when the service is shut down, so that the classes of an undeployed service are not kept
+ * by {@code System.out}. A router left behind by another copy of the service, deployed before,
+ * is not kept either: the new router prints straight to the console the old one printed to.
+ * <p>
+ * A capture writes to the buffer of the {@link DecodeWorkspace} of its thread, so that the
+ * buffer is used again by the next request of the thread.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ConsoleCapture implements AutoCloseable
+{
+    /**
+     * Throws away everything written to it.
+     */
+    private static final OutputStream DISCARD = new OutputStream()
+    {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte[] b, int off, int len) { }
+    };
+
+    private static final PrintStream DISCARD_STREAM = new PrintStream(DISCARD);
+
+    /**
+     * The stream each thread prints to while a capture is open on it.
+     */
+    private static final ThreadLocal<PrintStream> sinks = new ThreadLocal<>();
+
+    /**
+     * The stream installed as {@code System.out}, or null if it is not installed.
+     */
+    private static Router router;
+
+    /**
+     * Sends what is written to it to the stream of the current thread, or to the console.
+     */
+    static final class Router extends PrintStream
+    {
+        private final PrintStream console;
+
+        Router(PrintStream console)
+        {
+            super(new OutputStream()
+            {
+                @Override
+                public void write(int b)
+                {
+                    sink(console).write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                {
+                    sink(console).write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException
+                {
+                    sink(console).flush();
+                }
+            }, true);
+            this.console = console;
+        }
+
+        /**
+         * The stream printed to by the threads without a capture.
+         */
+        public PrintStream getConsole() { return console; }
+
+        private static PrintStream sink(PrintStream console)
+        {
+            PrintStream sink = sinks.get();
+            return sink != null ? sink : console;
+        }
+    }
+
+    private final ByteArrayOutputStream baos;
+    private final PrintStream stream;
+    private final PrintStream previous;
+
+    /**
+     * @param keep Whether the printed text is kept
+     * @param workspace The workspace whose buffer holds the printed text
+     */
+    public ConsoleCapture(boolean keep, DecodeWorkspace workspace)
+    {
+        this.baos = keep ? workspace.console() : null;
+        this.stream = keep ? workspace.consoleStream() : DISCARD_STREAM;
+        this.previous = route(stream);
+    }
+
+    /** This method replaces {@code System.out} with the stream that sends what each thread
+     * prints to its capture. It does nothing if the stream is already installed.
+     */
+    static synchronized void install()
+    {
+        if (router == null)
+        {
+            router = new Router(console(System.out));
+            System.setOut(router);
+        }
+    }
+
+    /** This method puts back the console {@code System.out} printed to before
+     * {@link #install()}, if the stream installed is still {@code System.out}.
+     */
+    static synchronized void uninstall()
+    {
+        if (router != null)
+        {
+            if (System.out == router)
+            {
+                System.setOut(router.getConsole());
+            }
+            router = null;
+        }
+    }
+
+    /** This method finds the console behind the given stream. A router installed by another
+     * copy of this class, loaded by the class loader of another deployment of the service, is
+     * skipped, so that the new router does not hold on to it.
+     */
+    private static PrintStream console(PrintStream out)
+    {
+        Class<?> type = out.getClass();
+        if (type != Router.class && type.getName().equals(Router.class.getName()))
+        {
+            try
+            {
+                Method getConsole = type.getMethod("getConsole");
+                getConsole.setAccessible(true);
+                return (PrintStream) getConsole.invoke(out);
+            }
+            catch (ReflectiveOperationException | ClassCastException e)
+            {
+                return out;
+            }
+        }
+        return out;
+    }
+
+    /** This method sends what the current thread prints to the given stream, so that the
+     * threads working for a request can print to its capture.
+     *
+     * @param sink The stream, or null to print to the console
+     * @return The stream the thread printed to before.
+     */
+    static PrintStream route(PrintStream sink)
+    {
+        PrintStream previous = sinks.get();
+        if (sink == null)
+        {
+            sinks.remove();
+        }
+        else
+        {
+            sinks.set(sink);
+        }
+        return previous;
+    }
+
+    /** This method gives the stream the current thread prints to.
+     *
+     * @return The stream, or null if the thread prints to the console.
+     */
+    static PrintStream sink()
+    {
+        return sinks.get();
+    }
+
+    /** This method gives the text printed so far.
+     *
+     * @return The printed text, or null if it was not kept.
+     */
+    public String getText()
+    {
+        if (baos == null)
+        {
+            return null;
+        }
+        stream.flush();
+        return baos.toString();
+    }
+
+    /** This method sends what the thread prints back to where it went before the capture.
+     */
+    @Override
+    public void close()
+    {
+        stream.flush();
+        route(previous);
+    }
+}
@@ -0,0 +1,126 @@
+package org.anc.lapps.nlp4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The decoding options of a request, once they have been checked by the
+ * {@link RequestValidator}. Everything held here is known to be valid, so the
+ * configuration built from it can not fail.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class DecodeRequest
+{
+    /**
+     * A column of the TSV input, and the node field it holds.
+     */
+    public static class Column
+    {
+        public final int index;
+        public final String field;
+
+        public Column(int index, String field)
+        {
+            this.index = index;
+            this.field = field;
+        }
+    }
+
+    private final List<Column> columns = new ArrayList<>();
+    private final List<Lexicon> lexica = new ArrayList<>();
+    private boolean pos;
+    private boolean ner;
+    private boolean dep;
+    private String format;
+    private boolean pipelined;
+    private boolean printed = true;
+    private String modelVersion;
+    private ModelVersion models;
+
+    /**
+     * The TSV columns, in the order they were given. Empty if no TSV fields were given.
+     */
+    public List<Column> getColumns() { return Collections.unmodifiableList(columns); }
+
+    void addColumn(int index, String field) { columns.add(new Column(index, field)); }
+
+    /**
+     * The requested lexica, in the order of {@link Lexicon#PARAMETERS}.
+     */
+    public List<Lexicon> getLexica() { return Collections.unmodifiableList(lexica); }
+
+    void addLexicon(Lexicon lexicon) { lexica.add(lexicon); }
+
+    public boolean isPos() { return pos; }
+
+    void setPos(boolean pos) { this.pos = pos; }
+
+    public boolean isNer() { return ner; }
+
+    void setNer(boolean ner) { this.ner = ner; }
+
+    public boolean isDep() { return dep; }
+
+    void setDep(boolean dep) { this.dep = dep; }
+
+    public String getFormat() { return format; }
+
+    void setFormat(String format) { this.format = format; }
+
+    /**
+     * Whether the stages of the decoder should run concurrently, with a {@link PipelinedDecoder}.
+     */
+    public boolean isPipelined() { return pipelined; }
+
+    void setPipelined(boolean pipelined) { this.pipelined = pipelined; }
+
+    /**
+     * Whether the console output of the decoder is returned with the output, as "Printed".
+     */
+    public boolean isPrinted() { return printed; }
+
+    void setPrinted(boolean printed) { this.printed = printed; }
+
+    /**
+     * The name of the model version pinned by the request, or null if it uses the current one.
+     */
+    public String getModelVersion() { return modelVersion; }
+
+    void setModelVersion(String modelVersion) { this.modelVersion = modelVersion; }
+
+    /**
+     * The model version the request is decoded with, once it has been looked up.
+     */
+    public ModelVersion getModels() { return models; }
+
+    void setModels(ModelVersion models) { this.models = models; }
+
+    /**
+     * The options of the request as "key=value" pairs, for the logs.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder("format=").append(format);
+        text.append(" pos=").append(pos).append(" ner=").append(ner).append(" dep=").append(dep);
+        for (Lexicon lexicon : lexica)
+        {
+            text.append(' ').append(lexicon.parameter).append('=').append(lexicon.value);
+        }
+        if (!columns.isEmpty())
+        {
+            text.append(" columns=").append(columns.size());
+        }
+        if (pipelined)
+        {
+            text.append(" pipelined=true");
+        }
+        if (models != null)
+        {
+            text.append(" models=").append(models.getName());
+        }
+        return text.toString();
+    }
+}
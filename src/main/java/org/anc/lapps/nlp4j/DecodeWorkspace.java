@@ -0,0 +1,173 @@
+package org.anc.lapps.nlp4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * The buffers a thread uses to decode a request, kept from one request to the next so that
+ * they are not allocated again and again: the builders of the configuration and of the output,
+ * the buffer catching the printed output, and the TSV reader with its line and sentence buffers.
+ * <p>
+ * Each thread has its own workspace, which it gets with {@link #get()}. The buffers are reset
+ * when they are handed out, which only clears their length. A buffer that grew past the
+ * capacity limit for a large request is dropped once the request is done, so that a thread
+ * does not hold on to the memory of its largest request forever. The memory of the workspaces
+ * is not counted in the budget of the {@link ResourceGovernor}, and every request thread and
+ * every worker of the stages has one, so the limit is kept small: the buffers are worth keeping
+ * for the many small requests, while a large request pays for its own. The limit, in characters,
+ * can be set with the system property {@value #CAPACITY_PROPERTY}.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class DecodeWorkspace
+{
+    public static final String CAPACITY_PROPERTY = "nlp4j.workspace.capacity";
+
+    private static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final ThreadLocal<DecodeWorkspace> workspaces = new ThreadLocal<DecodeWorkspace>()
+    {
+        @Override
+        protected DecodeWorkspace initialValue()
+        {
+            return new DecodeWorkspace(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+        }
+    };
+
+    /**
+     * A byte buffer that tells how much memory it holds.
+     */
+    private static class Buffer extends ByteArrayOutputStream
+    {
+        Buffer(int size)
+        {
+            super(size);
+        }
+
+        int capacity() { return buf.length; }
+    }
+
+    private final int capacity;
+
+    private StringBuilder config;
+    private StringBuilder output;
+    private Buffer console;
+    private PrintStream consoleStream;
+    private TSVSliceReader reader;
+
+    /**
+     * @param capacity The size, in characters or bytes, above which a buffer is not kept
+     *                 after a request
+     */
+    DecodeWorkspace(int capacity)
+    {
+        this.capacity = capacity;
+        this.config = newBuilder();
+        this.output = newBuilder();
+        this.console = new Buffer(Math.min(INITIAL_CAPACITY, capacity));
+        this.consoleStream = new PrintStream(console);
+    }
+
+    /** This method gives the workspace of the current thread.
+     *
+     * @return The workspace.
+     */
+    public static DecodeWorkspace get()
+    {
+        return workspaces.get();
+    }
+
+    /** This method gives the builder for the text of a configuration, emptied.
+     */
+    public StringBuilder config()
+    {
+        config.setLength(0);
+        return config;
+    }
+
+    /** This method gives the builder for a decoded output, emptied.
+     *
+     * @param expected The expected length of the output
+     */
+    public StringBuilder output(int expected)
+    {
+        output.setLength(0);
+        output.ensureCapacity(Math.min(expected, capacity));
+        return output;
+    }
+
+    /** This method gives the buffer catching the printed output, emptied. The buffer is
+     * written through {@link #consoleStream()}.
+     */
+    public ByteArrayOutputStream console()
+    {
+        console.reset();
+        return console;
+    }
+
+    /**
+     * The stream writing to the buffer of the printed output.
+     */
+    public PrintStream consoleStream() { return consoleStream; }
+
+    /** This method gives the TSV reader of the workspace, set up for the given columns.
+     *
+     * @param columns The TSV columns of the request
+     */
+    public TSVSliceReader reader(List<DecodeRequest.Column> columns)
+    {
+        if (reader == null)
+        {
+            reader = new TSVSliceReader(columns);
+        }
+        else
+        {
+            reader.setColumns(columns);
+        }
+        return reader;
+    }
+
+    /** This method copies the text of a builder of the workspace, and drops the buffers that
+     * grew too large.
+     *
+     * @param builder The builder, from {@link #config()} or {@link #output(int)}
+     * @return The text of the builder.
+     */
+    public String finish(StringBuilder builder)
+    {
+        String text = builder.toString();
+        trim();
+        return text;
+    }
+
+    /** This method lets go of the input held by the reader, and replaces the buffers that grew
+     * past the capacity limit with small ones.
+     */
+    public void trim()
+    {
+        if (config.capacity() > capacity)
+        {
+            config = newBuilder();
+        }
+        if (output.capacity() > capacity)
+        {
+            output = newBuilder();
+        }
+        if (console.capacity() > capacity)
+        {
+            console = new Buffer(Math.min(INITIAL_CAPACITY, capacity));
+            consoleStream = new PrintStream(console);
+        }
+        if (reader != null)
+        {
+            reader.close();
+        }
+    }
+
+    private StringBuilder newBuilder()
+    {
+        return new StringBuilder(Math.min(INITIAL_CAPACITY, capacity));
+    }
+}
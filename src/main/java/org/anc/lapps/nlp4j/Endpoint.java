@@ -0,0 +1,21 @@
+package org.anc.lapps.nlp4j;
+
+import java.io.IOException;
+
+/**
+ * A service that accepts a {@code Data} object as a JSON string and returns its result in
+ * the same way, like {@link NLP4JCustomDecode#execute(String)}. The {@link ShardCoordinator}
+ * sends the shards of large requests to endpoints.
+ *
+ * @author Alexandru Mahmoud
+ */
+public interface Endpoint
+{
+    /** This method sends a request to the service and waits for its result.
+     *
+     * @param input A JSON string representing a Data object
+     * @return A JSON string containing the resulting Data object.
+     * @throws IOException If the service could not be reached
+     */
+    String execute(String input) throws IOException;
+}
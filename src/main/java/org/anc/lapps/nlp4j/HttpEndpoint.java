@@ -0,0 +1,79 @@
+package org.anc.lapps.nlp4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An endpoint reached over HTTP. The {@code Data} JSON is posted to the URL, and the
+ * body of the response is the resulting {@code Data} JSON.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class HttpEndpoint implements Endpoint
+{
+    private final URL url;
+    private final int timeout;
+
+    /**
+     * @param url The URL the requests are posted to
+     * @param timeout The connection and read timeout, in milliseconds
+     */
+    public HttpEndpoint(URL url, int timeout)
+    {
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String execute(String input) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            connection.setRequestProperty("Accept", "application/json");
+
+            try (OutputStream out = connection.getOutputStream())
+            {
+                out.write(input.getBytes(StandardCharsets.UTF_8));
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+            {
+                throw new HttpStatusException(url + " returned HTTP status " + status, status);
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream())
+            {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0)
+                {
+                    body.write(buffer, 0, read);
+                }
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return url.toString();
+    }
+}
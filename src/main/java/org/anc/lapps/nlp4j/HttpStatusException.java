@@ -0,0 +1,36 @@
+package org.anc.lapps.nlp4j;
+
+import java.io.IOException;
+
+/**
+ * Thrown by an {@link HttpEndpoint} when the service answers with an HTTP status other than
+ * 200, so that the {@link ShardCoordinator} can tell the errors of the service, which may pass
+ * on another peer, from the requests the service refused, which would fail on every peer.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class HttpStatusException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public HttpStatusException(String message, int status)
+    {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() { return status; }
+
+    /**
+     * Whether the status is a server error, in the 5xx range.
+     */
+    public boolean isServerError() { return status >= 500; }
+
+    /**
+     * Whether the request may pass on another peer: a server error, or a peer that timed out
+     * or is receiving too many requests.
+     */
+    public boolean isRetryable() { return isServerError() || status == 408 || status == 429; }
+}
@@ -0,0 +1,22 @@
+package org.anc.lapps.nlp4j;
+
+/**
+ * Thrown when the input of a request can not be read in the format it was given in, such as
+ * a TSV line whose head column does not point to a token of its sentence. The message names
+ * the line at fault, and is meant to be wrapped in an error {@code Data} object and returned
+ * to the user.
+ * <p>
+ * It is unchecked because the input is read through iterators, as the decoder asks for
+ * the sentences.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class InputFormatException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public InputFormatException(String message)
+    {
+        super(message);
+    }
+}
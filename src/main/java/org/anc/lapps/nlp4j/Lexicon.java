@@ -0,0 +1,88 @@
+package org.anc.lapps.nlp4j;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The lexica that can be requested, each identified by the parameter that selects it
+ * and the name the user gives as its value.
+ *
+ * @author Alexandru Mahmoud
+ */
+public enum Lexicon
+{
+    AMBIGUITY_SIMPLIFIED("ambiguity", "simplified", "ambiguity_classes",
+            "word_form_simplified", "en-ambiguity-classes-simplified.xz"),
+    AMBIGUITY_SIMPLIFIED_LOWERCASE("ambiguity", "simplified-lowercase", "ambiguity_classes",
+            "word_form_simplified_lowercase", "en-ambiguity-classes-simplified-lowercase.xz"),
+    CLUSTERS_BROWN_SIMPLIFIED_LC("clusters", "brown-simplified-lc", "word_clusters",
+            "word_form_simplified_lowercase", "en-brown-clusters-simplified-lowercase.xz"),
+    CLUSTERS_BROWN_TWIT_LC("clusters", "brown-twit-lc", "word_clusters",
+            "word_form_lowercase", "en-brown-clusters-twit-lowercase.xz"),
+    GAZETTEERS_SIMPLIFIED("gazetteers", "simplified", "named_entity_gazetteers",
+            "word_form_simplified", "en-named-entity-gazetteers-simplified.xz"),
+    GAZETTEERS_SIMPLIFIED_LOWERCASE("gazetteers", "simplified-lowercase", "named_entity_gazetteers",
+            "word_form_simplified_lowercase", "en-named-entity-gazetteers-simplified-lowercase.xz"),
+    EMBEDDINGS_UNDIGITALIZED("embeddings", "undigitalized", "word_embeddings",
+            "word_form_undigitalized", "en-word-embeddings-undigitalized.xz");
+
+    /**
+     * The lexicon parameters, in the order their elements appear in the configuration file.
+     */
+    public static final String[] PARAMETERS = {"ambiguity", "clusters", "gazetteers", "embeddings"};
+
+    private static final Map<String, Lexicon> lookup = new HashMap<>();
+
+    static
+    {
+        for (Lexicon lexicon : values())
+        {
+            lookup.put(lexicon.parameter + "=" + lexicon.value, lexicon);
+        }
+    }
+
+    /**
+     * The Data parameter that selects the lexicon, e.g. "clusters".
+     */
+    public final String parameter;
+
+    /**
+     * The name given by the user as the value of the parameter.
+     */
+    public final String value;
+
+    /**
+     * The XML element of the lexicon in the configuration file.
+     */
+    public final String element;
+
+    /**
+     * The node field the lexicon is keyed on.
+     */
+    public final String field;
+
+    /**
+     * The name of the file holding the lexicon.
+     */
+    public final String file;
+
+    Lexicon(String parameter, String value, String element, String field, String file)
+    {
+        this.parameter = parameter;
+        this.value = value;
+        this.element = element;
+        this.field = field;
+        this.file = file;
+    }
+
+    /** This method finds the lexicon selected by a parameter and name.
+     *
+     * @param parameter The lexicon parameter, e.g. "clusters"
+     * @param value The name given as the value of the parameter
+     * @return The matching lexicon, or null if the name is not known for the parameter.
+     */
+    public static Lexicon get(String parameter, String value)
+    {
+        return lookup.get(parameter + "=" + value);
+    }
+}
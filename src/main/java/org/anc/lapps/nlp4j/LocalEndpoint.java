@@ -0,0 +1,31 @@
+package org.anc.lapps.nlp4j;
+
+import org.lappsgrid.api.ProcessingService;
+
+/**
+ * An endpoint backed by a service instance in the same JVM, used to run several
+ * decoders side by side on one machine.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class LocalEndpoint implements Endpoint
+{
+    private final ProcessingService service;
+
+    public LocalEndpoint(ProcessingService service)
+    {
+        this.service = service;
+    }
+
+    @Override
+    public String execute(String input)
+    {
+        return service.execute(input);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "local:" + service.getClass().getSimpleName();
+    }
+}
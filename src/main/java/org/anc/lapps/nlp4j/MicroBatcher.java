@@ -0,0 +1,259 @@
+package org.anc.lapps.nlp4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Collects concurrent requests that use the same configuration into batches, so that they
+ * are decoded together instead of each paying the cost of a decode on its own.
+ * <p>
+ * The first request of a configuration opens a batch and becomes its leader. The leader waits
+ * for more requests of the same configuration to join, until the batch is full or the batching
+ * window has passed, and then decodes the whole batch while the others wait for their results.
+ * The leader only waits while other requests with the same configuration are in flight, which
+ * means an earlier batch is still being decoded: a request with nothing to wait for is decoded
+ * at once, and a client sending its requests one after the other never waits for the window.
+ * The leader stops waiting as soon as the earlier requests are done.
+ * <p>
+ * Batching is turned on by setting the window, in milliseconds, with the system property
+ * {@value #WINDOW_PROPERTY}. The maximum size of a batch can be set with {@value #SIZE_PROPERTY}.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class MicroBatcher
+{
+    public static final String WINDOW_PROPERTY = "nlp4j.batch.window";
+    public static final String SIZE_PROPERTY = "nlp4j.batch.size";
+
+    private static final int DEFAULT_SIZE = 32;
+
+    /**
+     * Decodes the requests of a batch.
+     */
+    public interface Handler
+    {
+        /** This method decodes every job of the batch, setting its output, or its error if
+         * the job failed on its own.
+         *
+         * @param configuration The configuration shared by the jobs
+         * @param batch The jobs, in the order they arrived
+         * @throws AdmissionException If the configuration could not be loaded for the batch
+         */
+        void decode(String configuration, List<Job> batch) throws AdmissionException;
+    }
+
+    /**
+     * A request waiting in a batch.
+     */
+    public static class Job
+    {
+        public final DecodeRequest request;
+        public final Map<String,String> payload;
+
+        Map<String,String> output;
+        RuntimeException error;
+
+        Job(DecodeRequest request, Map<String,String> payload)
+        {
+            this.request = request;
+            this.payload = payload;
+        }
+
+        public void setOutput(Map<String,String> output) { this.output = output; }
+
+        public void setError(RuntimeException error) { this.error = error; }
+    }
+
+    /**
+     * The jobs of a batch, and the failure of the whole batch if there was one.
+     */
+    private static class Batch
+    {
+        final List<Job> jobs = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Throwable error;
+    }
+
+    private final Handler handler;
+    private final long window;
+    private final int maxSize;
+
+    /**
+     * The batches still open to new jobs, keyed by configuration.
+     */
+    private final Map<String, Batch> open = new HashMap<>();
+
+    /**
+     * The number of requests between their arrival and their result, keyed by configuration.
+     */
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    /**
+     * @param handler Decodes the batches
+     * @param window The time, in milliseconds, a batch stays open for new jobs
+     * @param maxSize The number of jobs at which a batch is decoded without waiting further
+     */
+    public MicroBatcher(Handler handler, long window, int maxSize)
+    {
+        this.handler = handler;
+        this.window = window;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /** This method creates a batcher with the window and size set in the system properties.
+     *
+     * @param handler Decodes the batches
+     * @return The batcher, or null if no batching window is set.
+     */
+    public static MicroBatcher fromProperties(Handler handler)
+    {
+        long window = Long.getLong(WINDOW_PROPERTY, 0);
+        if (window <= 0)
+        {
+            return null;
+        }
+        return new MicroBatcher(handler, window, Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    /** This method decodes a request as part of a batch of requests with the same configuration.
+     *
+     * @param configuration The configuration of the request
+     * @param request The validated request
+     * @param payload The payload of the request
+     * @return The output payload of the request.
+     * @throws AdmissionException If the configuration could not be loaded for the batch
+     */
+    public Map<String,String> submit(String configuration, DecodeRequest request, Map<String,String> payload)
+            throws AdmissionException
+    {
+        Job job = new Job(request, payload);
+        Batch batch;
+        boolean leader = false;
+        synchronized (this)
+        {
+            Integer count = inFlight.get(configuration);
+            inFlight.put(configuration, count == null ? 1 : count + 1);
+            batch = open.get(configuration);
+            if (batch == null)
+            {
+                batch = new Batch();
+                open.put(configuration, batch);
+                leader = true;
+            }
+            batch.jobs.add(job);
+            if (batch.jobs.size() >= maxSize)
+            {
+                // The batch is full, so the leader can stop waiting.
+                open.remove(configuration);
+                notifyAll();
+            }
+        }
+
+        try
+        {
+            if (leader)
+            {
+                lead(configuration, batch);
+            }
+            else
+            {
+                await(batch);
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                // A leader waiting for the earlier requests of the configuration may now go ahead.
+                int count = inFlight.get(configuration) - 1;
+                if (count == 0)
+                {
+                    inFlight.remove(configuration);
+                }
+                else
+                {
+                    inFlight.put(configuration, count);
+                }
+                notifyAll();
+            }
+        }
+
+        if (batch.error instanceof AdmissionException)
+        {
+            throw (AdmissionException) batch.error;
+        }
+        if (batch.error instanceof RuntimeException)
+        {
+            throw (RuntimeException) batch.error;
+        }
+        if (batch.error instanceof Error)
+        {
+            throw (Error) batch.error;
+        }
+        if (job.error != null)
+        {
+            throw job.error;
+        }
+        return job.output;
+    }
+
+    /** This method waits for the batch to fill up, or for the earlier requests of the
+     * configuration to be done, then closes and decodes it.
+     */
+    private void lead(String configuration, Batch batch)
+    {
+        synchronized (this)
+        {
+            long deadline = System.currentTimeMillis() + window;
+            long remaining = window;
+            while (open.get(configuration) == batch && inFlight.get(configuration) > batch.jobs.size() && remaining > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (open.get(configuration) == batch)
+            {
+                open.remove(configuration);
+            }
+        }
+
+        try
+        {
+            handler.decode(configuration, batch.jobs);
+        }
+        catch (AdmissionException | RuntimeException | Error e)
+        {
+            batch.error = e;
+        }
+        finally
+        {
+            batch.done.countDown();
+        }
+    }
+
+    /** This method waits for the leader of the batch to decode it.
+     */
+    private static void await(Batch batch)
+    {
+        try
+        {
+            batch.done.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a batch.", e);
+        }
+    }
+}
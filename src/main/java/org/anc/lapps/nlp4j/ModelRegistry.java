@@ -0,0 +1,351 @@
+package org.anc.lapps.nlp4j;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the versions of the model and lexicon files found in a directory, and of the
+ * version requests are decoded with when they do not pin one.
+ * <p>
+ * Each directory inside the registry directory holds a version, named after the directory, with
+ * its files in a "models" and a "lexica" directory, the same layout as src/main/resources. The
+ * newest version, with the names compared part by part so that "1.10" comes after "1.9", is the
+ * current one. A version should be moved into the registry directory whole, once all its files
+ * have been copied.
+ * <p>
+ * The registry directory is checked regularly for new versions. A new version is loaded in the
+ * background for every configuration loaded with the current one, and only once all of them are
+ * loaded do new requests switch to it, so that no request waits for a model to load. The
+ * pipelines of the old version are then retired by the {@link ResourceGovernor}, and their memory
+ * is given back once the requests still using them are done. A version with a missing or broken
+ * file is left out, and requests stay on the current version; a version that does not fit in the
+ * memory budget yet is tried again at the next check. Removing the current version switches
+ * back to the newest one left.
+ * <p>
+ * The registry is turned on by setting its directory with the system property
+ * {@value #DIRECTORY_PROPERTY}. The time between checks, in milliseconds, can be set with
+ * {@value #POLL_PROPERTY}.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ModelRegistry
+{
+    public static final String DIRECTORY_PROPERTY = "nlp4j.models.directory";
+    public static final String POLL_PROPERTY = "nlp4j.models.poll";
+
+    private static final long DEFAULT_POLL = 30000;
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelRegistry.class);
+
+    /**
+     * Orders the version names part by part, comparing the numeric parts as numbers.
+     */
+    static final Comparator<String> VERSION_ORDER = ModelRegistry::compareVersions;
+
+    private final File directory;
+    private final ResourceGovernor governor;
+
+    /**
+     * The versions that could not be loaded, which are not tried again.
+     */
+    private final Set<String> failed = new HashSet<>();
+
+    /**
+     * The versions found in the directory at the last check, keyed by name.
+     */
+    private volatile Map<String, ModelVersion> versions = Collections.emptyMap();
+
+    private volatile ModelVersion current;
+
+    private ScheduledExecutorService poller;
+
+    /**
+     * @param directory The directory holding a directory for each version
+     * @param governor The governor loading the pipelines of the versions
+     */
+    public ModelRegistry(File directory, ResourceGovernor governor)
+    {
+        this.directory = directory;
+        this.governor = governor;
+    }
+
+    /** This method creates a registry for the directory set in the system properties, finds
+     * its current version and starts checking the directory for new versions.
+     *
+     * @param governor The governor loading the pipelines of the versions
+     * @return The registry, or null if no directory is set.
+     */
+    public static ModelRegistry fromProperties(ResourceGovernor governor)
+    {
+        String path = System.getProperty(DIRECTORY_PROPERTY);
+        if (path == null || path.trim().isEmpty())
+        {
+            return null;
+        }
+
+        ModelRegistry registry = new ModelRegistry(new File(path.trim()), governor);
+        registry.refresh();
+        if (registry.getCurrent() == null)
+        {
+            logger.error("No model version found in {}.", path);
+        }
+        registry.start(Long.getLong(POLL_PROPERTY, DEFAULT_POLL));
+        return registry;
+    }
+
+    /**
+     * The version used by the requests that do not pin one, or null if no version was found.
+     */
+    public ModelVersion getCurrent() { return current; }
+
+    /**
+     * The names of the versions that can be pinned, oldest first.
+     */
+    public List<String> getVersions() { return new ArrayList<>(versions.keySet()); }
+
+    /** This method finds the version a request is decoded with.
+     *
+     * @param name The name of the version pinned by the request, or null for the current version
+     * @return The version, or null if there is no version with the name.
+     */
+    public ModelVersion resolve(String name)
+    {
+        if (name == null)
+        {
+            return current;
+        }
+        return versions.get(name);
+    }
+
+    /** This method checks the directory for versions, and switches to the newest one once it
+     * has been loaded for the configurations in use. It is called regularly once the registry
+     * is started, and can be called directly to pick up a new version at once.
+     *
+     * @return Whether the current version changed.
+     */
+    public synchronized boolean refresh()
+    {
+        TreeMap<String, ModelVersion> found = new TreeMap<>(VERSION_ORDER);
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                if (new File(file, "models").isDirectory() && !failed.contains(file.getName()))
+                {
+                    found.put(file.getName(), new ModelVersion(file.getName(), file.getPath() + "/"));
+                }
+            }
+        }
+        ModelVersion previous = current;
+        ModelVersion newest = found.isEmpty() ? null : found.lastEntry().getValue();
+        boolean switching = newest != null && (previous == null || !previous.getName().equals(newest.getName()));
+        if (switching)
+        {
+            // The newest version may be one that was replaced before, when switching back to it.
+            governor.restore(newest.getPath());
+        }
+        if (switching && previous != null)
+        {
+            try
+            {
+                warm(previous, newest);
+            }
+            catch (AdmissionException e)
+            {
+                switching = false;
+                governor.retire(newest.getPath());
+                if (isBroken(e))
+                {
+                    logger.error("Unable to load model version {}: {}", newest, e.getMessage());
+                    failed.add(newest.getName());
+                    found.remove(newest.getName());
+                }
+                else
+                {
+                    logger.warn("Unable to load model version {} yet, trying again at the next check: {}",
+                            newest, e.getMessage());
+                }
+            }
+        }
+
+        // The map is complete before it is published, since it is read without locking.
+        versions = Collections.unmodifiableMap(found);
+        if (!switching)
+        {
+            return false;
+        }
+
+        current = newest;
+        logger.info("Switched to model version {}.", newest);
+        if (previous != null)
+        {
+            governor.retire(previous.getPath());
+        }
+        return true;
+    }
+
+    /** This method starts checking the directory for new versions in the background.
+     *
+     * @param interval The time between checks, in milliseconds
+     */
+    public synchronized void start(long interval)
+    {
+        if (poller != null || interval <= 0)
+        {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "nlp4j-models");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(() -> {
+            // A failed check must not stop the ones after it.
+            try
+            {
+                refresh();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Unable to check for new model versions.", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** This method stops checking the directory for new versions.
+     */
+    public synchronized void shutdown()
+    {
+        if (poller != null)
+        {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    /** This method loads the next version for every configuration loaded with the previous one,
+     * by replacing the directory of the previous version in the configuration and its files.
+     *
+     * @throws AdmissionException If a file is missing from the next version, or could not be loaded
+     */
+    private void warm(ModelVersion previous, ModelVersion next) throws AdmissionException
+    {
+        for (Pipeline loaded : governor.loaded(previous.getPath()))
+        {
+            String configuration = loaded.getConfiguration().replace(previous.getPath(), next.getPath());
+            List<String> resources = new ArrayList<>();
+            for (String resource : loaded.getResources())
+            {
+                String replaced = resource.replace(previous.getPath(), next.getPath());
+                if (!new File(replaced).isFile())
+                {
+                    throw new AdmissionException("The model version " + next + " has no file " + replaced,
+                            new FileNotFoundException(replaced));
+                }
+                resources.add(replaced);
+            }
+
+            Pipeline pipeline = governor.acquire(configuration, resources);
+            try
+            {
+                governor.decoder(pipeline);
+            }
+            finally
+            {
+                governor.release(pipeline);
+            }
+        }
+    }
+
+    /** This method tells whether a version failed to load because of its files, in which case
+     * it is not tried again. A version that did not fit in the memory budget in time is tried
+     * again at the next check.
+     */
+    private static boolean isBroken(AdmissionException e)
+    {
+        return e.getCause() instanceof FileNotFoundException || e.getCause() instanceof RuntimeException;
+    }
+
+    /** This method compares two version names part by part, the parts being separated by dots,
+     * dashes or underscores. Parts made of digits are compared as numbers, and come before
+     * other parts.
+     */
+    private static int compareVersions(String first, String second)
+    {
+        String[] firstParts = first.split("[._-]");
+        String[] secondParts = second.split("[._-]");
+        for (int i = 0; i < Math.min(firstParts.length, secondParts.length); i++)
+        {
+            int order = compareParts(firstParts[i], secondParts[i]);
+            if (order != 0)
+            {
+                return order;
+            }
+        }
+        int order = Integer.compare(firstParts.length, secondParts.length);
+        return order != 0 ? order : first.compareTo(second);
+    }
+
+    private static int compareParts(String first, String second)
+    {
+        boolean firstNumber = isNumber(first);
+        boolean secondNumber = isNumber(second);
+        if (firstNumber && secondNumber)
+        {
+            // Compared without parsing, so that any number of digits is accepted.
+            String firstDigits = stripZeros(first);
+            String secondDigits = stripZeros(second);
+            if (firstDigits.length() != secondDigits.length())
+            {
+                return Integer.compare(firstDigits.length(), secondDigits.length());
+            }
+            return firstDigits.compareTo(secondDigits);
+        }
+        if (firstNumber != secondNumber)
+        {
+            return firstNumber ? -1 : 1;
+        }
+        return first.compareTo(second);
+    }
+
+    private static boolean isNumber(String part)
+    {
+        if (part.isEmpty())
+        {
+            return false;
+        }
+        for (int i = 0; i < part.length(); i++)
+        {
+            if (part.charAt(i) < '0' || part.charAt(i) > '9')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String stripZeros(String digits)
+    {
+        int start = 0;
+        while (start < digits.length() - 1 && digits.charAt(start) == '0')
+        {
+            start++;
+        }
+        return digits.substring(start);
+    }
+}
@@ -0,0 +1,52 @@
+package org.anc.lapps.nlp4j;
+
+/**
+ * A version of the model and lexicon files, held in one directory with a "models" and
+ * a "lexica" directory inside it.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ModelVersion
+{
+    /**
+     * The files bundled with the service, used when no model registry is configured.
+     */
+    public static final ModelVersion BUNDLED = new ModelVersion("bundled", "src/main/resources/");
+
+    private final String name;
+    private final String path;
+
+    /**
+     * @param name The name of the version, e.g. "1.2"
+     * @param path The path of the directory of the version, ending with a separator
+     */
+    public ModelVersion(String name, String path)
+    {
+        this.name = name;
+        this.path = path;
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * The path of the directory of the version, ending with a separator. Every file of
+     * the version is under it.
+     */
+    public String getPath() { return path; }
+
+    /**
+     * The path of the directory holding the models, ending with a separator.
+     */
+    public String getModelsPath() { return path + "models/"; }
+
+    /**
+     * The path of the directory holding the lexica, ending with a separator.
+     */
+    public String getLexicaPath() { return path + "lexica/"; }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -1,6 +1,7 @@
 package org.anc.lapps.nlp4j;
 
-import edu.emory.mathcs.nlp.bin.NLPDecode;
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
 import org.lappsgrid.api.ProcessingService;
 import org.lappsgrid.discriminator.Discriminators;
 import org.lappsgrid.metadata.IOSpecification;
@@ -9,13 +10,16 @@ import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * @author Alexandru Mahmoud
@@ -28,9 +32,72 @@ public class NLP4JCustomDecode implements ProcessingService
      * The Json String required by getMetadata()
      */
     private String metadata;
-    private Logger logger;
 
-    public NLP4JCustomDecode() { metadata = generateMetadata(); }
+    private static final Logger logger = LoggerFactory.getLogger(NLP4JCustomDecode.class);
+
+    /**
+     * The key of the request id in the logging context, so that it can be added to every
+     * event logged while processing the request.
+     */
+    public static final String REQUEST_KEY = "request";
+
+    /**
+     * Records the slow requests when a threshold is set, or null if tracing is off.
+     */
+    private static final SlowRequestTracer tracer = SlowRequestTracer.fromProperties();
+
+    /**
+     * The loaded decoders are shared by all instances of the service, so that each
+     * configuration is only loaded once and the memory they use is accounted for together.
+     */
+    private static final ResourceGovernor governor = new ResourceGovernor();
+
+    /**
+     * Sends the inputs to the peer services when the service runs as a coordinator,
+     * or null if no peers are configured.
+     */
+    private static final ShardCoordinator coordinator = ShardCoordinator.fromProperties();
+
+    /**
+     * Runs the stages of the decoders concurrently for the requests that ask for it.
+     */
+    private static final PipelinedDecoder stages = new PipelinedDecoder();
+
+    /**
+     * Decodes concurrent requests with the same configuration together when a batching
+     * window is set, or null if batching is off.
+     */
+    private static final MicroBatcher batcher = MicroBatcher.fromProperties(NLP4JCustomDecode::decodeBatch);
+
+    /**
+     * The versions of the models and lexica when a registry directory is set, or null if the
+     * files bundled with the service are used.
+     */
+    private static final ModelRegistry registry = ModelRegistry.fromProperties(governor);
+
+    public NLP4JCustomDecode()
+    {
+        metadata = generateMetadata();
+        ConsoleCapture.install();
+    }
+
+    /** This method stops the threads of the service and gives {@code System.out} back to the
+     * console. It is meant to be called by the container when the service is undeployed, so
+     * that nothing outside the service keeps its classes.
+     */
+    public static void shutdown()
+    {
+        if (registry != null)
+        {
+            registry.shutdown();
+        }
+        if (coordinator != null)
+        {
+            coordinator.shutdown();
+        }
+        stages.shutdown();
+        ConsoleCapture.uninstall();
+    }
 
     private String generateMetadata()
     {
@@ -90,8 +157,39 @@ public class NLP4JCustomDecode implements ProcessingService
     @Override
     public String execute(String input) {
 
-        logger = LoggerFactory.getLogger(NLP4JCustomDecode.class);
+        // Every request gets an id, which is added to every event logged while processing it,
+        // and a trace of the time spent in each stage.
+        RequestTrace trace = new RequestTrace();
+        MDC.put(REQUEST_KEY, trace.getId());
+        try
+        {
+            return process(input, trace);
+        }
+        catch (RuntimeException | Error e)
+        {
+            trace.setOutcome("exception");
+            throw e;
+        }
+        finally
+        {
+            trace.finish();
+            logger.debug("{}", trace);
+            if (tracer != null)
+            {
+                tracer.record(trace);
+            }
+            MDC.remove(REQUEST_KEY);
+        }
+    }
 
+    /** This method processes a request, recording the time taken by each stage in its trace.
+     *
+     * @param input A JSON string representing a Data object
+     * @param trace The trace of the request
+     * @return A JSON string containing a Data object with the output, or an error.
+     */
+    private String process(String input, RequestTrace trace)
+    {
         // Parse the JSON string into a Data object, and extract its discriminator.
         Data<String> data = Serializer.parse(input, Data.class);
         String discriminator = data.getDiscriminator();
@@ -99,604 +197,620 @@ public class NLP4JCustomDecode implements ProcessingService
         // If the Input discriminator is ERROR, return the Data as is, since it's already a wrapped error.
         if (Discriminators.Uri.ERROR.equals(discriminator))
         {
+            trace.setOutcome("passed-error");
             return input;
         }
 
         // If the Input discriminator is not GET, return a wrapped Error with an appropriate message.
         else if (!Discriminators.Uri.GET.equals(discriminator))
         {
-            String errorData = generateError("Invalid discriminator.\nExpected " + Discriminators.Uri.GET + "\nFound " + discriminator);
-            logger.error(errorData);
-            return errorData;
+            return reject(trace, "Invalid discriminator.\nExpected " + Discriminators.Uri.GET + "\nFound " + discriminator);
         }
 
         // Output an error if no payload is given, since an input is required to run the program
         if (data.getPayload() == null)
         {
-            String errorData = generateError("No input given.");
-            logger.error(errorData);
-            return errorData;
+            return reject(trace, "No input given.");
         }
 
         // Else (if a payload is given), process the input
         else
         {
-            // Create temporary directories to hold input and output. This is needed because
-            // the RankLib methods need directories for most of their processing, so the input
-            // will be given within files in a directory, and the output will be read from files
-            // in the output directory.
-            Path inputDirPath = null;
+            // Check all the parameters before anything else, so that invalid requests are
+            // rejected before any temporary files are created or any models are loaded.
+            DecodeRequest request;
             try
             {
-                inputDirPath = Files.createTempDirectory("input");
-                inputDirPath.toFile().deleteOnExit();
+                request = RequestValidator.validate(data);
             }
-            // Since we are only handling files created by the function, there should never be
-            // a problem with these files, thus the exception will get promoted to a RuntimeException.
-            catch (IOException e)
+            catch (ValidationException e)
             {
-                String errorData = generateError("Error in handling of temporary files.");
-                logger.error(errorData);
-                throw new RuntimeException("A problem occurred in the handling of the temporary files.", e);
+                return reject(trace, e.getMessage());
             }
 
-            StringBuilder params = new StringBuilder("-c ");
-
+            // The version is looked up once, so that the whole request is decoded with the
+            // same files even if the registry switches to a new version meanwhile. An unknown
+            // version is not an error of the input, since another service may know it.
             try
             {
-                String configPath = makeConfigFile(inputDirPath, data);
-                if(configPath.contains("ERROR"))
-                {
-                    if(configPath.contains("INDEX ERROR"))
-                    {
-                        StringBuilder errorMsg = new StringBuilder("The given list of TSV indices and TSV fields did not match.\r\n");
-                        String[] errorParts;
-                        errorParts = configPath.split(";");
-                        errorMsg.append("Given indices: ").append(errorParts[1]);
-                        errorMsg.append("\r\nGiven fields: ").append(errorParts[2]);
-
-                        String errorData = generateError(errorMsg.toString());
-                        logger.error(errorData);
-                        return errorData;
-                    }
+                request.setModels(resolveModels(request));
+            }
+            catch (ValidationException e)
+            {
+                return fail(trace, e.getMessage());
+            }
+            String configTxt = makeConfigText(request);
 
-                    else if(configPath.contains("AMBIGUITY ERROR"))
-                    {
-                        StringBuilder errorMsg = new StringBuilder("Invalid field given for ambiguity classes.\r\n");
-                        String[] errorParts;
-                        errorParts = configPath.split(";");
-                        errorMsg.append("Given: ").append(errorParts[1]);
-
-                        String errorData = generateError(errorMsg.toString());
-                        logger.error(errorData);
-                        return errorData;
-                    }
+            // Get the payload and convert it back into a HashMap to get all input content from it.
+            Map<String,String> payload = Serializer.parse(data.getPayload(), HashMap.class);
+            trace.describe(request, data.getPayload().length());
+            trace.mark("validate");
 
-                    else if(configPath.contains("CLUSTERS ERROR"))
+            // When running as a coordinator, the inputs are decoded by the peer services,
+            // unless this request is itself a shard sent by a coordinator. The peers decode every
+            // shard with the version looked up here, which is the one given with the output.
+            if (coordinator != null && data.getParameter(ShardCoordinator.SHARD_PARAMETER) == null)
+            {
+                try
+                {
+                    String version = registry != null ? request.getModels().getName() : null;
+                    Map<String,String> outputPayload = coordinator.execute(data, payload, request.getFormat(), version);
+                    trace.mark("shards");
+                    if (!request.isPrinted())
                     {
-                        StringBuilder errorMsg = new StringBuilder("Invalid field given for word clusters.\r\n");
-                        String[] errorParts;
-                        errorParts = configPath.split(";");
-                        errorMsg.append("Given: ").append(errorParts[1]);
-
-                        String errorData = generateError(errorMsg.toString());
-                        logger.error(errorData);
-                        return errorData;
+                        outputPayload.remove("Printed");
                     }
+                    return makeOutput(request, outputPayload);
+                }
+                catch (ShardException e)
+                {
+                    return fail(trace, e.getMessage());
+                }
+            }
 
-                    else if(configPath.contains("NAMED ENTITY ERROR"))
-                    {
-                        StringBuilder errorMsg = new StringBuilder("Invalid field given for named entity gazetteers.\r\n");
-                        String[] errorParts;
-                        errorParts = configPath.split(";");
-                        errorMsg.append("Given: ").append(errorParts[1]);
-
-                        String errorData = generateError(errorMsg.toString());
-                        logger.error(errorData);
-                        return errorData;
-                    }
+            // Small concurrent requests for the same configuration are decoded together
+            // when batching is on.
+            if (batcher != null)
+            {
+                try
+                {
+                    Map<String,String> outputPayload = batcher.submit(configTxt, request, payload);
+                    trace.mark("batch");
+                    return makeOutput(request, outputPayload);
+                }
+                catch (AdmissionException e)
+                {
+                    return fail(trace, e.getMessage());
+                }
+                catch (InputFormatException e)
+                {
+                    return reject(trace, e.getMessage());
+                }
+            }
 
-                    else if(configPath.contains("EMBEDDINGS ERROR"))
-                    {
-                        StringBuilder errorMsg = new StringBuilder("Invalid field given for word embeddings.\r\n");
-                        String[] errorParts;
-                        errorParts = configPath.split(";");
-                        errorMsg.append("Given: ").append(errorParts[1]);
-
-                        String errorData = generateError(errorMsg.toString());
-                        logger.error(errorData);
-                        return errorData;
-                    }
+            // TSV input is already tokenized, so it is read straight from the payload
+            // instead of going through temporary files. So is the input of pipelined
+            // requests, whose sentences are handed to the stages one by one.
+            boolean inMemory = NLPDecoder.FORMAT_TSV.equals(request.getFormat()) || request.isPipelined();
 
-                    else
-                    {
-                        StringBuilder errorMsg = new StringBuilder("Unknown error found in configuration parameters.\r\n");
-                        errorMsg.append("String returned: ").append(configPath);
+            // Create temporary directories to hold input and output. This is needed because
+            // the decoder reads its input from files, and the output will be read from the
+            // files it creates in the same directory.
+            Path inputDirPath = null;
+            List<String> inputFiles = null;
+            if (!inMemory)
+            {
+                try
+                {
+                    inputDirPath = Files.createTempDirectory("input");
+                    inputDirPath.toFile().deleteOnExit();
 
-                        String errorData = generateError(errorMsg.toString());
-                        logger.error(errorData);
-                        return errorData;
-                    }
+                    // Write the input files to the temporary directory, where the decoded
+                    // output files will be created.
+                    inputFiles = writeInputFiles(payload, inputDirPath);
                 }
-
-                // Call the method that converts the parameters to the format that they would
-                // be in when given from command-line.
-                params.append(configPath);
-                //params.append("C:\\Users\\Alex\\research\\config-decode-en.xml");
-                params.append(convertParameters(data, inputDirPath).replace("\\", "/"));
+                // Since we are only handling files created by the function, there should never be
+                // a problem with these files, thus the exception will get promoted to a RuntimeException.
+                catch (IOException e)
+                {
+                    logger.error("A problem occurred in the handling of the temporary files.", e);
+                    throw new RuntimeException("A problem occurred in the handling of the temporary files.", e);
+                }
+                trace.mark("files");
             }
-            // Since we are only handling files created by the function, there should never be
-            // a problem with these files, thus the exception will get promoted to a RuntimeException.
-            catch (IOException e)
+
+            // Reserve the decoder for this configuration. The models and lexica are only loaded
+            // the first time a configuration is used, and only if they fit in the memory budget.
+            Pipeline pipeline;
+            try
             {
-                String errorData = generateError("Error in handling of temporary files.");
-                logger.error(errorData);
-                throw new RuntimeException("A problem occurred in the handling of the temporary files.", e);
+                pipeline = governor.acquire(configTxt, listResources(request), request.getModelVersion() != null);
             }
-            String[] paramsArray;
-
-            // Split the parameters into an array, which will be given as the args[] argument
-            // to the main methods of RankLib.
-            try { paramsArray = params.toString().split("\\s+"); }
-            catch (PatternSyntaxException ex)
+            catch (AdmissionException e)
             {
-                String errorData = generateError("Error in parameter syntax.");
-                logger.error(errorData);
-                return errorData;
+                return fail(trace, e.getMessage());
             }
-
-            // Create a stream to hold the output from System.out.println. This is necessary
-            // because when running, the program will print things from many RankLib classes and
-            // methods. So the printed output will be "caught" and saved to output.
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            PrintStream ps = new PrintStream(baos);
-            // Save the old System.out PrintStream, to reset at the end of the program.
-            PrintStream oldPrintStream = System.out;
-            // Set the special stream as the out stream
-            System.setOut(ps);
-
-            NLPDecode.main(paramsArray);
-
-            // Set System.out back to the original PrintStream
-            System.out.flush();
-            System.setOut(oldPrintStream);
+            trace.mark("acquire");
 
             // Make a Map to hold both the printed, and file outputs.
             Map<String,String> outputPayload = new HashMap<>();
 
-            // Add the printed text caught from the out stream to the payload
-            // with the "Printed" key
+            // Catch the output from System.out.println. This is necessary because when running,
+            // the program will print things from many NLP4J classes and methods. The printed
+            // output is returned with the output unless the request turned it off.
+            String printed;
+            try (ConsoleCapture console = new ConsoleCapture(request.isPrinted(), DecodeWorkspace.get()))
+            {
+                NLPDecoder decoder = governor.decoder(pipeline);
+                trace.mark("load");
 
-            outputPayload.put("Printed", baos.toString());
+                if (inMemory)
+                {
+                    outputPayload.putAll(decodePayload(decoder, request, payload, request.isPipelined()));
+                }
+                else
+                {
+                    // Decode each input file into an output file with the .out extension
+                    // in the same directory.
+                    for (String inputFile : inputFiles)
+                    {
+                        try (InputStream in = new FileInputStream(inputFile);
+                             OutputStream out = new FileOutputStream(inputFile + ".out"))
+                        {
+                            decoder.decode(in, out, request.getFormat());
+                        }
+                    }
+                }
+                trace.mark("decode");
+                printed = console.getText();
+            }
+            catch (AdmissionException e)
+            {
+                return fail(trace, e.getMessage());
+            }
+            catch (InputFormatException e)
+            {
+                return reject(trace, e.getMessage());
+            }
+            catch (IOException e)
+            {
+                logger.error("A problem occurred in the handling of the output files.", e);
+                throw new RuntimeException("A problem occurred in the handling of the output files.", e);
+            }
+            finally
+            {
+                governor.release(pipeline);
+            }
 
+            // Add the printed text caught from the out stream to the payload
+            // with the "Printed" key
+            if (printed != null)
+            {
+                outputPayload.put("Printed", printed);
+            }
 
-            // Process all the files in the input folder with the .nlp extension,
+            // Process all the files in the input folder with the .out extension,
             // to return them as part of the outputted Data object, and delete them
             // from the temporary directory. The output files are in the input
-            // directory because the decode function automatically generate the files
-            // in the same directory. The .nlp extension is the default, and there is
-            // no need to include a parameter to change it so it will always remain so.
-            File inputFolder = new File(inputDirPath.toString());
-            File[] listOfFiles = inputFolder.listFiles();
-            int i = 0;
-            for (File file : listOfFiles)
+            // directory because they are created next to the input files.
+            if (!inMemory)
             {
-                if (file.isFile())
+                File inputFolder = new File(inputDirPath.toString());
+                File[] listOfFiles = inputFolder.listFiles();
+                int i = 0;
+                for (File file : listOfFiles)
                 {
-                    // Get the filename, to serve as the key in the Map object, and
-                    // the content of the file to be put in the output
-                    String fileName = file.getName();
-                    if(fileName.contains(".out"))
+                    if (file.isFile())
                     {
-                        try
-                        {
-                            i++;
-                            String fileContent = readFile(file.getAbsolutePath());
-                            outputPayload.put("output-file-" + i, fileContent);
-                            file.deleteOnExit();
-                        }
-                        catch(IOException e)
+                        // Get the filename, to serve as the key in the Map object, and
+                        // the content of the file to be put in the output
+                        String fileName = file.getName();
+                        if(fileName.contains(".out"))
                         {
-                            String errorData = generateError("Error in handling of output files.");
-                            logger.error(errorData);
-                            throw new RuntimeException("A problem occurred in the handling of the output files.", e);
-                        }
+                            try
+                            {
+                                i++;
+                                String fileContent = readFile(file.getAbsolutePath());
+                                outputPayload.put("output-file-" + i, fileContent);
+                                file.deleteOnExit();
+                            }
+                            catch(IOException e)
+                            {
+                                logger.error("A problem occurred in the handling of the output files.", e);
+                                throw new RuntimeException("A problem occurred in the handling of the output files.", e);
+                            }
 
+                        }
                     }
                 }
             }
 
             // Parse the Map to Json, then put it as a payload to a Data object with a LAPPS
             // discriminator and return it as the final output
-            String outputJson = Serializer.toJson(outputPayload);
-            Data<String> output = new Data<>(Discriminators.Uri.LAPPS, outputJson);
-            return output.asPrettyJson();
+            String result = makeOutput(request, outputPayload);
+            trace.mark("output");
+            return result;
         }
 
     }
 
-
-    /** This method takes in the input data and returns its parameters as an array of strings,
-     * representing the parameters as they would be written to run the jar files from command-line,
-     * to be given as input to the main classes.
+    /** This method puts the output of a request in a {@code Data} object with a LAPPS
+     * discriminator. When a model registry is set, the version the request was decoded with
+     * is given as the {@value RequestValidator#MODEL_VERSION} parameter.
      *
-     * @param data A Data object
-     * @param inputDirPath A Path to the input directory
-     * @return A String representing the parameters of the Data object.
+     * @param request The validated request
+     * @param outputPayload The Map holding the outputs
+     * @return A JSON string containing the Data object.
      */
-    private String convertParameters(Data<String> data, Path inputDirPath) throws IOException
+    private static String makeOutput(DecodeRequest request, Map<String,String> outputPayload)
     {
-        StringBuilder params = new StringBuilder();
-
-        // Get the payload and convert it back into a HashMap to get all input content from it.
-        String payloadJson = data.getPayload();
-        Map<String,String> payload = Serializer.parse(payloadJson, HashMap.class);
+        String outputJson = Serializer.toJson(outputPayload);
+        Data<String> output = new Data<>(Discriminators.Uri.LAPPS, outputJson);
+        if (registry != null)
+        {
+            output.setParameter(RequestValidator.MODEL_VERSION, request.getModels().getName());
+        }
+        return output.asPrettyJson();
+    }
 
-        // These are the parameters for training that give input.
-        // Since the input can include many train and development files, we process
-        // all keys expecting their labels to include "train", "dev", or "config."
-        for (String key : payload.keySet())
+    /** This method finds the model version of a request: the version it pinned, or the
+     * current version of the registry, or the bundled files if there is no registry.
+     *
+     * @param request The validated request
+     * @return The model version.
+     * @throws ValidationException If the pinned version is not known, or no version is available
+     */
+    private static ModelVersion resolveModels(DecodeRequest request) throws ValidationException
+    {
+        String pinned = request.getModelVersion();
+        if (registry == null)
         {
-            // If the input file is a train file, we take its content and save it to a
-            // temporary file in the input directory. The entire directory will be given
-            // as the train directory path, and the extension ".trn" will be specified
-            // to distinguish the train files.
-            if (key.contains("input"))
+            if (pinned != null)
             {
-                String fileContent = payload.get(key);
-                writeTempFile(key, inputDirPath, fileContent, ".input");
+                throw new ValidationException(Collections.singletonList(new ValidationError(
+                        RequestValidator.MODEL_VERSION, pinned,
+                        "Model versions can not be pinned, since the service has no model registry.")));
             }
+            return ModelVersion.BUNDLED;
         }
 
-        // Add the train directory parameter with the input directory path as an argument,
-        // and specify the "input" extension for train files.
-        params.append(" -i ").append(inputDirPath).append(" -ie input");
-
-        params.append(" -oe ").append("out");
-
-        // If a format is given, add the format to the parameters.
-        if(data.getParameter("format") != null)
+        ModelVersion models = registry.resolve(pinned);
+        if (models == null)
         {
-            params.append(" -format ").append(data.getParameter("format"));
+            String message = pinned == null ? "No model version is available."
+                    : "Unknown model version.\r\nGiven: " + pinned
+                    + "\r\nAvailable: " + String.join(", ", registry.getVersions());
+            throw new ValidationException(Collections.singletonList(
+                    new ValidationError(RequestValidator.MODEL_VERSION, pinned, message)));
         }
-
-        // Return the resulting list of parameters to be processed as an array
-        // and given as input to the NLP4J Train main method.
-        return params.toString();
+        return models;
     }
 
-    /** This method creates the appropriate configuration file in the given temporary input
-     * directory, and returns the path to that file as a String.
-     *
-     * @param dir The path to input directory in which the configuration file should be created
-     * @param inputData The input data from which to extract configuration details
-     * @return A String representing the path to the created configuration file.
+    /** This method gives the model version of a request that has been looked up, or the
+     * current one for a request that has not.
      */
-    public String makeConfigFile(Path dir, Data<String> inputData) throws IOException
+    private static ModelVersion modelsOf(DecodeRequest request)
     {
-        // This will hold the text for the configuration file, which is in XML format.
-        StringBuilder configTxt = new StringBuilder("<configuration>\r\n");
-
-
-        // START OF TSV FORMAT
-        // Create an array of strings that will hold the field indices, if they are specified
-        String[] tsvIndices = null;
-        String indicesString = "";
-
-        // Split the indices by commas, and remove whitespaces to have an array representing
-        // all indices for the corresponding fields
-        if (inputData.getParameter("tsv-indices") != null)
+        if (request.getModels() != null)
         {
-            indicesString = (String) inputData.getParameter("tsv-indices");
-            tsvIndices = indicesString.split(",[ ]*");
+            return request.getModels();
         }
-
-        if (inputData.getParameter("tsv-fields") != null)
+        if (registry != null && registry.getCurrent() != null)
         {
-            String fieldsString = (String) inputData.getParameter("tsv-fields");
-            // Split and remove white spaces
-            String[] tsvFields = fieldsString.split(",[ ]*");
-            configTxt.append("    <tsv>\r\n");
+            return registry.getCurrent();
+        }
+        return ModelVersion.BUNDLED;
+    }
 
-            // If the indices are specified, add each field to its respective index
-            if (tsvIndices != null)
-            {
-                String index, field;
-                for (int i = 0; i < tsvFields.length; i++)
-                {
-                    try
-                    {
-                        index = tsvIndices[i];
-                        field = tsvFields[i];
-                    }
+    /** This method logs the failure of a request, and returns its error message as a {@code Data}
+     * object with the discriminator set to http://vocab.lappsgrid.org/ns/error
+     *
+     * @param trace The trace of the request
+     * @param message The error message
+     * @return A JSON string containing a Data object with the message as a payload.
+     */
+    private String fail(RequestTrace trace, String message)
+    {
+        trace.setOutcome("error");
+        logger.error("Request failed: {}", message);
+        return generateError(message, false);
+    }
 
-                    // If any field does not have a corresponding index, and the indices
-                    // are specified, return a string specifying that there is an error,
-                    // which will be handled by the execute function after returning.
-                    // (We return a String here and then handle the error in execute in
-                    // order to wrap the error appropriately before returning it to the user)
-                    catch (IndexOutOfBoundsException e)
-                    {
-                        StringBuilder errorMsg = new StringBuilder("INDEX ERROR;");
-                        errorMsg.append(indicesString).append(";").append(fieldsString);
-                        return errorMsg.toString();
-                    }
+    /** This method fails a request because of its input, which would fail the same way on any
+     * service. The error is marked with the {@value ShardCoordinator#INPUT_ERROR_PARAMETER}
+     * parameter, so that a coordinator does not try the shard again on another peer.
+     *
+     * @param trace The trace of the request
+     * @param message The error message
+     * @return A JSON string containing a Data object with the message as a payload.
+     */
+    private String reject(RequestTrace trace, String message)
+    {
+        trace.setOutcome("error");
+        logger.error("Request rejected: {}", message);
+        return generateError(message, true);
+    }
 
-                    configTxt.append("        <column index=\"").append(index);
-                    configTxt.append("\" field=\"").append(field).append("\"/>\r\n");
-                }
-            }
 
-            // If the indices are not specified, assume the fields are listed in the order
-            // they appear in the tsv file, starting with index 0. In this case, go through the
-            // fields and use the index of each field as its index in the configuration file.
-            else
-            {
-                for (int i = 0; i < tsvFields.length; i++)
-                {
-                    String field = tsvFields[i];
-                    configTxt.append("        <column index=\"").append(i);
-                    configTxt.append("\" field=\"").append(field).append("\"/>\r\n");
-                }
-            }
-            configTxt.append("    </tsv>\r\n\r\n");
+    /** This method decodes a batch of requests with the same configuration side by side on
+     * the workers of the stages, all with the same decoder. The pipeline is reserved and loaded
+     * once for the whole batch. Each request catches its own printed output on the worker
+     * decoding it, and is given what was printed while loading the decoder before it.
+     * A request that fails does not fail the others.
+     *
+     * @param configuration The configuration of the requests
+     * @param batch The requests
+     * @throws AdmissionException If the configuration could not be loaded
+     */
+    private static void decodeBatch(String configuration, List<MicroBatcher.Job> batch) throws AdmissionException
+    {
+        // The pipeline is kept after a switch of the model version if a request pinned its version.
+        boolean pinned = false;
+        for (MicroBatcher.Job job : batch)
+        {
+            pinned |= job.request.getModelVersion() != null;
         }
-        // END OF TSV FORMAT
-
-        // START OF LEXICA
-        // This is the path for all lexica dependent files
-        String lexicaPath = "src/main/resources/lexica/";
 
-        // A boolean that will be set to true when the first lexical parameter is set.
-        // This is needed because we don't know which, if any, of the components will be
-        // specified, thus we don't know if the lexica header is needed.
-        boolean lexicaSet = false;
-
-        if(inputData.getParameter("ambiguity") != null)
+        Pipeline pipeline = governor.acquire(configuration, listResources(batch.get(0).request), pinned);
+        try
         {
-            // Three arrays holding the names, which users can choose from, and their
-            // corresponding filenames and field names
-            String[] ambiguityNames = {"simplified","simplified-lowercase"};
-            String[] ambiguityFiles = {"en-ambiguity-classes-simplified.xz", "en-ambiguity-classes-simplified-lowercase.xz"};
-            String[] ambiguityFields = {"word_form_simplified","word_form_simplified_lowercase"};
-
-            if(!lexicaSet)
+            // The output printed while loading is only kept if a request of the batch wants it.
+            boolean keep = false;
+            for (MicroBatcher.Job job : batch)
             {
-                lexicaSet = true;
-                configTxt.append("    <lexica>\r\n");
+                keep |= job.request.isPrinted();
             }
 
-            String givenName = (String) inputData.getParameter("ambiguity");
-            StringBuilder ambiguityTxt = null;
-            int index = 0;
-
-            // Loop through the possible names and complete the corresponding XML format for the
-            // configuration file using the index that matches the given name
-            while((ambiguityTxt == null) && (index < ambiguityNames.length))
+            NLPDecoder decoder;
+            String loading;
+            try (ConsoleCapture console = new ConsoleCapture(keep, DecodeWorkspace.get()))
             {
-                if(ambiguityNames[index].equals(givenName))
-                {
-                    ambiguityTxt = new StringBuilder("        <ambiguity_classes field=\"");
-                    ambiguityTxt.append(ambiguityFields[index]).append("\">").append(lexicaPath);
-                    ambiguityTxt.append(ambiguityFiles[index]).append("</ambiguity_classes>\r\n");
-                }
-                index++;
+                decoder = governor.decoder(pipeline);
+                loading = console.getText();
             }
 
-            // If no names matches, the user gave an unknown name, thus return a string mentioning the error
-            // which will be handled in the execute method and properly wrapped as an error data object
-            // to be returned to the user
-            if(ambiguityTxt == null)
+            List<Runnable> tasks = new ArrayList<>(batch.size());
+            for (MicroBatcher.Job job : batch)
             {
-                StringBuilder errorMsg = new StringBuilder("AMBIGUITY ERROR;");
-                errorMsg.append(givenName);
-                return errorMsg.toString();
+                tasks.add(() -> decodeJob(decoder, job, loading));
             }
+            stages.runAll(tasks);
+        }
+        finally
+        {
+            governor.release(pipeline);
+        }
+    }
 
-            else
+    /** This method decodes one request of a batch on the current thread. The request is not
+     * run through the stages even if it asks for it, since the thread is already one of their
+     * workers.
+     *
+     * @param decoder The decoder of the batch
+     * @param job The request
+     * @param loading The output printed while loading the decoder, or null if it was not kept
+     */
+    private static void decodeJob(NLPDecoder decoder, MicroBatcher.Job job, String loading)
+    {
+        try (ConsoleCapture console = new ConsoleCapture(job.request.isPrinted(), DecodeWorkspace.get()))
+        {
+            Map<String,String> output = decodePayload(decoder, job.request, job.payload, false);
+            if (job.request.isPrinted())
             {
-                configTxt.append(ambiguityTxt);
+                output.put("Printed", loading + console.getText());
             }
+            job.setOutput(output);
         }
-
-
-        if(inputData.getParameter("clusters") != null)
+        catch (RuntimeException e)
         {
-            // Three arrays holding the names, which users can choose from, and their
-            // corresponding filenames and field names
-            String[] clustersNames = {"brown-simplified-lc","brown-twit-lc"};
-            String[] clustersFiles = {"en-brown-clusters-simplified-lowercase.xz", "en-brown-clusters-twit-lowercase.xz"};
-            String[] clustersFields = {"word_form_simplified_lowercase","word_form_lowercase"};
+            job.setError(e);
+        }
+    }
 
-            if(!lexicaSet)
+    /** This method decodes every input of a payload straight from the payload.
+     *
+     * @param decoder The decoder of the request
+     * @param request The validated request
+     * @param payload The payload of the input data
+     * @param pipelined Whether the inputs are run through the concurrent stages
+     * @return A Map holding the output of each input.
+     */
+    private static Map<String,String> decodePayload(NLPDecoder decoder, DecodeRequest request, Map<String,String> payload,
+                                                    boolean pipelined)
+    {
+        // The TSV reader of the thread is used for all the inputs, so that its buffers are reused.
+        Map<String,String> outputPayload = new HashMap<>();
+        TSVSliceReader reader = DecodeWorkspace.get().reader(request.getColumns());
+        int i = 0;
+        for (String key : payload.keySet())
+        {
+            if (key.contains("input"))
             {
-                lexicaSet = true;
-                configTxt.append("    <lexica>\r\n");
+                i++;
+                outputPayload.put("output-file-" + i, decodeText(decoder, request, reader, payload.get(key), pipelined));
             }
+        }
+        return outputPayload;
+    }
 
-            String givenName = (String) inputData.getParameter("clusters");
-            StringBuilder clustersTxt = null;
-            int index = 0;
-
-            // Loop through the possible names and complete the corresponding XML format for the
-            // configuration file using the index that matches the given name
-            while((clustersTxt == null) && (index < clustersNames.length))
+    /** This method decodes an input read directly from the payload, one sentence at a time
+     * or through the concurrent stages of the pipeline, and returns the output in the same
+     * format as the decoded output files.
+     *
+     * @param decoder The decoder of the request
+     * @param request The validated request
+     * @param reader The reader for the TSV columns of the request
+     * @param input The input
+     * @param pipelined Whether the sentences are run through the concurrent stages
+     * @return A String holding the decoded sentences, each followed by a blank line.
+     */
+    private static String decodeText(NLPDecoder decoder, DecodeRequest request, TSVSliceReader reader, String input,
+                                     boolean pipelined)
+    {
+        DecodeWorkspace workspace = DecodeWorkspace.get();
+        StringBuilder output = workspace.output(input.length() * 2);
+        SentenceReader sentences = new SentenceReader(decoder, request.getFormat(), reader, input);
+        if (pipelined)
+        {
+            for (NLPNode[] nodes : stages.decode(decoder, sentences))
             {
-                if(clustersNames[index].equals(givenName))
-                {
-                    clustersTxt = new StringBuilder("        <word_clusters field=\"");
-                    clustersTxt.append(clustersFields[index]).append("\">").append(lexicaPath);
-                    clustersTxt.append(clustersFiles[index]).append("</word_clusters>\r\n");
-                }
-                index++;
+                appendSentence(output, decoder.toString(nodes));
             }
-
-            // If no names matches, the user gave an unknown name, thus return a string mentioning the error
-            // which will be handled in the execute method and properly wrapped as an error data object
-            // to be returned to the user
-            if(clustersTxt == null)
+        }
+        else
+        {
+            while (sentences.hasNext())
             {
-                StringBuilder errorMsg = new StringBuilder("CLUSTERS ERROR;");
-                errorMsg.append(givenName);
-                return errorMsg.toString();
+                NLPNode[] nodes = sentences.next();
+                decoder.decode(nodes);
+                appendSentence(output, decoder.toString(nodes));
             }
+        }
+        return workspace.finish(output);
+    }
 
-            else
-            {
-                configTxt.append(clustersTxt);
-            }
+    /** This method appends a decoded sentence to the output, followed by a blank line.
+     * The decoder separates nodes with "\n", while the output files are read back with
+     * "\r\n" line endings.
+     */
+    private static void appendSentence(StringBuilder output, String sentence)
+    {
+        int start = 0;
+        int end;
+        while ((end = sentence.indexOf('\n', start)) >= 0)
+        {
+            output.append(sentence, start, end).append("\r\n");
+            start = end + 1;
         }
+        output.append(sentence, start, sentence.length()).append("\r\n\r\n");
+    }
 
+    /** This method takes in the payload of the input data and writes the content of each
+     * of its input keys to a temporary file in the input directory, to be given to the decoder.
+     *
+     * @param payload The payload of the input data
+     * @param inputDirPath A Path to the input directory
+     * @return A List holding the paths to the input files that were written.
+     */
+    private List<String> writeInputFiles(Map<String,String> payload, Path inputDirPath) throws IOException
+    {
+        List<String> inputFiles = new ArrayList<>();
 
-        if(inputData.getParameter("gazetteers") != null)
+        // Since the input can include many files, we process all keys expecting
+        // their labels to include "input".
+        for (String key : payload.keySet())
         {
-            // Three arrays holding the names, which users can choose from, and their
-            // corresponding filenames and field names
-            String[] namedEntityNames = {"simplified","simplified-lowercase"};
-            String[] namedEntityFiles = {"en-named-entity-gazetteers-simplified.xz", "en-named-entity-gazetteers-simplified-lowercase.xz"};
-            String[] namedEntityFields = {"word_form_simplified","word_form_simplified_lowercase"};
-
-            if(!lexicaSet)
+            // If the key is an input, we take its content and save it to a temporary
+            // file in the input directory, with the extension ".input".
+            if (key.contains("input"))
             {
-                lexicaSet = true;
-                configTxt.append("    <lexica>\r\n");
+                String fileContent = payload.get(key);
+                Path filePath = writeTempFile(key, inputDirPath, fileContent, ".input");
+                inputFiles.add(filePath.toString());
             }
+        }
 
-            String givenName = (String) inputData.getParameter("gazetteers");
-            StringBuilder NETxt = null;
-            int index = 0;
+        return inputFiles;
+    }
 
-            // Loop through the possible names and complete the corresponding XML format for the
-            // configuration file using the index that matches the given name
-            while((NETxt == null) && (index < namedEntityNames.length))
-            {
-                if(namedEntityNames[index].equals(givenName))
-                {
-                    NETxt = new StringBuilder("        <named_entity_gazetteers field=\"");
-                    NETxt.append(namedEntityFields[index]).append("\">").append(lexicaPath);
-                    NETxt.append(namedEntityFiles[index]).append("</named_entity_gazetteers>\r\n");
-                }
-                index++;
-            }
+    /** This method creates the text of the configuration file for the given request,
+     * which is in XML format. The text also serves as the key under which the decoder
+     * loaded from it is shared. The paths of the models and lexica are those of the model
+     * version of the request, so each version is loaded as its own pipeline.
+     *
+     * @param request The validated request from which to take configuration details
+     * @return A String holding the configuration.
+     */
+    public String makeConfigText(DecodeRequest request)
+    {
+        // This will hold the text for the configuration file, which is in XML format. The
+        // builder of the thread's workspace is used, since a configuration is made per request.
+        DecodeWorkspace workspace = DecodeWorkspace.get();
+        ModelVersion models = modelsOf(request);
+        StringBuilder configTxt = workspace.config().append("<configuration>\r\n");
 
-            // If no names matches, the user gave an unknown name, thus return a string mentioning the error
-            // which will be handled in the execute method and properly wrapped as an error data object
-            // to be returned to the user
-            if(NETxt == null)
+        // START OF TSV FORMAT
+        // Add each field with its index. If the indices were not given, the validator has
+        // numbered the fields in the order they were listed, starting with index 0.
+        if (!request.getColumns().isEmpty())
+        {
+            configTxt.append("    <tsv>\r\n");
+            for (DecodeRequest.Column column : request.getColumns())
             {
-                StringBuilder errorMsg = new StringBuilder("NAMED ENTITY ERROR;");
-                errorMsg.append(givenName);
-                return errorMsg.toString();
+                configTxt.append("        <column index=\"").append(column.index);
+                configTxt.append("\" field=\"").append(column.field).append("\"/>\r\n");
             }
+            configTxt.append("    </tsv>\r\n\r\n");
+        }
+        // END OF TSV FORMAT
 
-            else
+        // START OF LEXICA
+        // The lexica section is only needed if at least one lexicon was requested.
+        if (!request.getLexica().isEmpty())
+        {
+            configTxt.append("    <lexica>\r\n");
+            for (Lexicon lexicon : request.getLexica())
             {
-                configTxt.append(NETxt);
+                configTxt.append("        <").append(lexicon.element).append(" field=\"");
+                configTxt.append(lexicon.field).append("\">").append(models.getLexicaPath()).append(lexicon.file);
+                configTxt.append("</").append(lexicon.element).append(">\r\n");
             }
+            configTxt.append("    </lexica>\r\n\r\n");
         }
+        // END OF LEXICA
 
-        if(inputData.getParameter("embeddings") != null)
+        // START OF MODELS
+        if (request.isPos() || request.isNer() || request.isDep())
         {
-            // Three arrays holding the names, which users can choose from, and their
-            // corresponding filenames and field names
-            String[] embeddingsNames = {"undigitalized"};
-            String[] embeddingsFiles = {"en-word-embeddings-undigitalized.xz"};
-            String[] embeddingsFields = {"word_form_undigitalized"};
-
-            if(!lexicaSet) {
-                lexicaSet = true;
-                configTxt.append("    <lexica>\r\n");
-            }
-
-            String givenName = (String) inputData.getParameter("embeddings");
-            StringBuilder embeddingsTxt = null;
-            int index = 0;
-
-            // Loop through the possible names and complete the corresponding XML format for the
-            // configuration file using the index that matches the given name
-            while((embeddingsTxt == null) && (index < embeddingsNames.length))
+            configTxt.append("    <models>\r\n");
+            if (request.isPos())
             {
-                if(embeddingsNames[index].equals(givenName))
-                {
-                    embeddingsTxt = new StringBuilder("        <word_embeddings field=\"");
-                    embeddingsTxt.append(embeddingsFields[index]).append("\">").append(lexicaPath);
-                    embeddingsTxt.append(embeddingsFiles[index]).append("</word_embeddings>\r\n");
-                }
-                index++;
+                configTxt.append("        <pos>").append(models.getModelsPath()).append("en-pos.xz</pos>\r\n");
             }
-
-            // If no names matches, the user gave an unknown name, thus return a string mentioning the error
-            // which will be handled in the execute method and properly wrapped as an error data object
-            // to be returned to the user
-            if(embeddingsTxt == null)
+            if (request.isNer())
             {
-                StringBuilder errorMsg = new StringBuilder("EMBEDDINGS ERROR;");
-                errorMsg.append(givenName);
-                return errorMsg.toString();
+                configTxt.append("        <ner>").append(models.getModelsPath()).append("en-ner.xz</ner>\r\n");
             }
-
-            else
+            if (request.isDep())
             {
-                configTxt.append(embeddingsTxt);
+                configTxt.append("        <dep>").append(models.getModelsPath()).append("en-dep.xz</dep>\r\n");
             }
+            configTxt.append("    </models>\r\n");
         }
+        // END OF MODELS
 
-        // If no lexica was set, remove the heading added at the beginning
-        // If lexica was set, end the lexica section in the XML file
-        if(lexicaSet)
-        {
-            configTxt.append("    </lexica>\r\n\r\n");
-        }
-        // END OF LEXICA
+        configTxt.append("</configuration>");
 
-        // START OF MODELS
-        boolean modelsSet = false;
-        // This is the path for all lexica dependent files
-        String modelsPath = "src/main/resources/models/";
+        return workspace.finish(configTxt);
+    }
 
-        if(inputData.getParameter("pos") != null)
+    /** This method lists the model and lexicon files used by a request, so that
+     * the memory they need can be estimated before loading them.
+     *
+     * @param request The validated request
+     * @return A List holding the paths to the files.
+     */
+    private static List<String> listResources(DecodeRequest request)
+    {
+        ModelVersion models = modelsOf(request);
+        List<String> resources = new ArrayList<>();
+        for (Lexicon lexicon : request.getLexica())
         {
-            if(!modelsSet)
-            {
-                modelsSet = true;
-                configTxt.append("    <models>\r\n");
-            }
-
-            configTxt.append("        <pos>").append(modelsPath).append("en-pos.xz</pos>\r\n");
+            resources.add(models.getLexicaPath() + lexicon.file);
         }
-
-        if(inputData.getParameter("ner") != null)
+        if (request.isPos())
         {
-            if(!modelsSet)
-            {
-                modelsSet = true;
-                configTxt.append("    <models>\r\n");
-            }
-
-            configTxt.append("        <ner>").append(modelsPath).append("en-ner.xz</ner>\r\n");
+            resources.add(models.getModelsPath() + "en-pos.xz");
         }
-
-        if(inputData.getParameter("dep") != null)
+        if (request.isNer())
         {
-            if(!modelsSet)
-            {
-                modelsSet = true;
-                configTxt.append("    <models>\r\n");
-            }
-
-            configTxt.append("        <dep>").append(modelsPath).append("en-dep.xz</dep>\r\n");
+            resources.add(models.getModelsPath() + "en-ner.xz");
         }
-
-        if(modelsSet)
+        if (request.isDep())
         {
-            configTxt.append("    </models>\r\n");
+            resources.add(models.getModelsPath() + "en-dep.xz");
         }
-
-        configTxt.append("</configuration>");
-
-        Path filePath = writeTempFile("config", dir, configTxt.toString(), ".xml");
-
-        return filePath.toString();
+        return resources;
     }
 
 
@@ -704,13 +818,18 @@ public class NLP4JCustomDecode implements ProcessingService
      * object with the discriminator set to http://vocab.lappsgrid.org/ns/error
      *
      * @param message A string representing the error message
+     * @param input Whether the error comes from the input of the request
      * @return A JSON string containing a Data object with the message as a payload.
      */
-    private String generateError(String message)
+    private String generateError(String message, boolean input)
     {
         Data<String> data = new Data<>();
         data.setDiscriminator(Discriminators.Uri.ERROR);
         data.setPayload(message);
+        if (input)
+        {
+            data.setParameter(ShardCoordinator.INPUT_ERROR_PARAMETER, true);
+        }
         return data.asPrettyJson();
     }
 
@@ -722,7 +841,8 @@ public class NLP4JCustomDecode implements ProcessingService
      */
     public String readFile(String path) throws IOException
     {
-        StringBuilder output = new StringBuilder();
+        DecodeWorkspace workspace = DecodeWorkspace.get();
+        StringBuilder output = workspace.output((int) Math.min(Integer.MAX_VALUE, new File(path).length()));
         BufferedReader br = new BufferedReader(new FileReader(path));
         String line = br.readLine();
         while (line != null) {
@@ -730,7 +850,7 @@ public class NLP4JCustomDecode implements ProcessingService
             line = br.readLine();
         }
         br.close();
-        return output.toString();
+        return workspace.finish(output);
     }
 
     /** This method creates a temporary text file at a certain directory, and writes
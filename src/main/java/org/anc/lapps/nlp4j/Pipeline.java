@@ -0,0 +1,101 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+
+import java.util.List;
+
+/**
+ * A decoder loaded for one configuration, together with the bookkeeping the
+ * {@link ResourceGovernor} needs to account for it: the memory it takes up and
+ * the number of requests currently using it.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class Pipeline
+{
+    /**
+     * The XML configuration the decoder was loaded from, which also identifies the pipeline.
+     */
+    private final String configuration;
+
+    /**
+     * The model and lexicon files referenced by the configuration.
+     */
+    private final List<String> resources;
+
+    /**
+     * The memory, in bytes, accounted to this pipeline. This starts as an estimate
+     * and is replaced by the measured value once the decoder has been loaded.
+     */
+    private long footprint;
+
+    /**
+     * The number of requests that have acquired the pipeline and not released it yet.
+     * Only pipelines with no users can be evicted.
+     */
+    private int users;
+
+    /**
+     * Whether the pipeline uses a model version that has been replaced, in which case it is
+     * removed as soon as its last user releases it.
+     */
+    private boolean retired;
+
+    private volatile NLPDecoder decoder;
+
+    /**
+     * The error the decoder failed to load with, or null if it did not fail.
+     */
+    private volatile Throwable failure;
+
+    Pipeline(String configuration, List<String> resources, long footprint)
+    {
+        this.configuration = configuration;
+        this.resources = resources;
+        this.footprint = footprint;
+    }
+
+    public String getConfiguration() { return configuration; }
+
+    public List<String> getResources() { return resources; }
+
+    public long getFootprint() { return footprint; }
+
+    void setFootprint(long footprint) { this.footprint = footprint; }
+
+    int getUsers() { return users; }
+
+    void addUser() { users++; }
+
+    void removeUser() { users--; }
+
+    boolean isRetired() { return retired; }
+
+    void retire() { retired = true; }
+
+    void restore() { retired = false; }
+
+    /** This method tells whether the pipeline uses any file under the given directory.
+     *
+     * @param directory The path of the directory, ending with a separator
+     */
+    public boolean uses(String directory)
+    {
+        for (String resource : resources)
+        {
+            if (resource.startsWith(directory))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    NLPDecoder getDecoder() { return decoder; }
+
+    void setDecoder(NLPDecoder decoder) { this.decoder = decoder; }
+
+    Throwable getFailure() { return failure; }
+
+    void fail(Throwable failure) { this.failure = failure; }
+}
@@ -0,0 +1,276 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.NLPComponent;
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the stages of a decoder concurrently, so that the sentences of a document flow through
+ * tokenization, part-of-speech tagging, named entity recognition and dependency parsing like
+ * an assembly line instead of one sentence at a time.
+ * <p>
+ * The thread calling {@link #decode(NLPDecoder, Iterator)} is the tokenization stage: it reads
+ * the sentences one by one, which for raw text means tokenizing it a block at a time with a
+ * {@link SentenceReader}, and hands each of them to the first component of the decoder. Every
+ * component after that is a stage of its own. When a worker finishes a stage for a sentence, it
+ * queues the next stage of that sentence on its own queue, where it stays close to the data it
+ * uses; idle workers steal queued stages from the busy ones. All the requests share one pool of
+ * workers, so the cores go to whichever stage has work waiting. The same workers decode the
+ * requests of a batch side by side, see {@link #runAll(List)}.
+ * <p>
+ * The number of sentences in flight in a request is bounded. Once the bound is reached, the
+ * tokenization stage waits for a sentence to leave the last stage before reading the next one,
+ * so a slow stage holds back the reading of the input instead of letting the queues grow.
+ * <p>
+ * The number of workers and the number of sentences in flight can be set with the system
+ * properties {@value #THREADS_PROPERTY} and {@value #CAPACITY_PROPERTY}.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class PipelinedDecoder
+{
+    public static final String THREADS_PROPERTY = "nlp4j.pipeline.threads";
+    public static final String CAPACITY_PROPERTY = "nlp4j.pipeline.capacity";
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final ForkJoinPool pool;
+    private final int capacity;
+
+    public PipelinedDecoder()
+    {
+        this(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+             Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+    }
+
+    /**
+     * @param threads The number of workers running the stages
+     * @param capacity The number of sentences of a request that may be in flight at once
+     */
+    public PipelinedDecoder(int threads, int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+
+        // The stages are run first in, first out, so that the sentences move through the
+        // pipeline in about the order they were read.
+        this.pool = new ForkJoinPool(Math.max(1, threads), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("nlp4j-stage-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    public int getCapacity() { return capacity; }
+
+    /** This method runs every sentence through all the components of the decoder.
+     *
+     * @param decoder The decoder whose components are the stages of the pipeline
+     * @param sentences The sentences to decode, in order. Reading them is the first stage.
+     * @return A List holding the decoded sentences, in the order they were read.
+     */
+    public List<NLPNode[]> decode(NLPDecoder decoder, Iterator<NLPNode[]> sentences)
+    {
+        Run run = new Run(decoder.getComponents());
+        try
+        {
+            while (run.error.get() == null)
+            {
+                // A sentence that can not be read fails the request like a failed stage, once
+                // the sentences already in flight are done with.
+                NLPNode[] nodes;
+                try
+                {
+                    if (!sentences.hasNext())
+                    {
+                        break;
+                    }
+                    nodes = sentences.next();
+                }
+                catch (RuntimeException e)
+                {
+                    run.error.compareAndSet(null, e);
+                    break;
+                }
+                run.inFlight.acquire();
+
+                int index;
+                synchronized (run.results)
+                {
+                    index = run.results.size();
+                    run.results.add(null);
+                }
+                if (run.components.isEmpty())
+                {
+                    run.complete(index, nodes);
+                }
+                else
+                {
+                    pool.execute(new Stage(run, 0, index, nodes));
+                }
+            }
+
+            // Wait for every sentence in flight to leave the last stage.
+            run.inFlight.acquire(capacity);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while decoding.", e);
+        }
+
+        Throwable error = run.error.get();
+        if (error instanceof RuntimeException)
+        {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error)
+        {
+            throw (Error) error;
+        }
+        return run.results;
+    }
+
+    /** This method runs independent tasks, such as the requests of a batch, on the workers
+     * and waits for all of them to finish. The tasks must not decode through the stages
+     * themselves, since they would hold the workers the stages need.
+     *
+     * @param tasks The tasks to run
+     * @throws RuntimeException The first failure of a task, once all of them are done
+     */
+    public void runAll(List<Runnable> tasks)
+    {
+        List<ForkJoinTask<?>> running = new ArrayList<>(tasks.size());
+        for (Runnable task : tasks)
+        {
+            running.add(pool.submit(task));
+        }
+
+        Throwable error = null;
+        for (ForkJoinTask<?> task : running)
+        {
+            try
+            {
+                task.join();
+            }
+            catch (RuntimeException | Error e)
+            {
+                if (error == null)
+                {
+                    error = e;
+                }
+            }
+        }
+        if (error instanceof RuntimeException)
+        {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error)
+        {
+            throw (Error) error;
+        }
+    }
+
+    /** This method stops the workers.
+     */
+    public void shutdown()
+    {
+        pool.shutdownNow();
+    }
+
+    /**
+     * The state of one request going through the pipeline.
+     */
+    private class Run
+    {
+        final List<NLPComponent<NLPNode>> components;
+        final List<NLPNode[]> results = new ArrayList<>();
+
+        /**
+         * The stream the request prints to, which the workers print to while they run its stages.
+         */
+        final PrintStream sink = ConsoleCapture.sink();
+        final Semaphore inFlight = new Semaphore(capacity);
+
+        /**
+         * The first failure of a stage, after which no more sentences are read.
+         */
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Run(List<NLPComponent<NLPNode>> components)
+        {
+            this.components = components;
+        }
+
+        void complete(int index, NLPNode[] nodes)
+        {
+            synchronized (results)
+            {
+                results.set(index, nodes);
+            }
+            inFlight.release();
+        }
+    }
+
+    /**
+     * One stage of one sentence: the component at the given position processing the sentence.
+     */
+    private static class Stage extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Run run;
+        private final int component;
+        private final int index;
+        private final NLPNode[] nodes;
+
+        Stage(Run run, int component, int index, NLPNode[] nodes)
+        {
+            this.run = run;
+            this.component = component;
+            this.index = index;
+            this.nodes = nodes;
+        }
+
+        @Override
+        protected void compute()
+        {
+            PrintStream previous = ConsoleCapture.route(run.sink);
+            try
+            {
+                if (run.error.get() == null)
+                {
+                    run.components.get(component).process(nodes);
+                }
+            }
+            catch (Throwable e)
+            {
+                run.error.compareAndSet(null, e);
+            }
+            finally
+            {
+                ConsoleCapture.route(previous);
+            }
+
+            if (component + 1 < run.components.size() && run.error.get() == null)
+            {
+                new Stage(run, component + 1, index, nodes).fork();
+            }
+            else
+            {
+                run.complete(index, nodes);
+            }
+        }
+    }
+}
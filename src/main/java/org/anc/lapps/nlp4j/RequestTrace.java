@@ -0,0 +1,139 @@
+package org.anc.lapps.nlp4j;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The id of a request and the time spent in each stage of its processing.
+ * <p>
+ * Marking a stage only reads the clock and stores the time, so a trace is cheap enough to keep
+ * for every request. The trace is formatted as "key=value" pairs by {@link #toString()}, which
+ * the logger only calls when the event is logged.
+ * <p>
+ * A trace belongs to the thread processing the request, and is not thread safe.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class RequestTrace
+{
+    /**
+     * Tells apart the ids of different service instances, so that the logs of several
+     * instances can be merged.
+     */
+    private static final String PROCESS = Integer.toHexString(ThreadLocalRandom.current().nextInt() & 0xffff);
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private final String id;
+    private final long start;
+    private long last;
+    private long end;
+
+    private String[] stages = new String[8];
+    private long[] times = new long[8];
+    private int count;
+
+    private DecodeRequest request;
+    private int characters;
+    private String outcome = "ok";
+
+    public RequestTrace()
+    {
+        this.id = PROCESS + "-" + counter.incrementAndGet();
+        this.start = System.nanoTime();
+        this.last = start;
+    }
+
+    public String getId() { return id; }
+
+    /** This method records the time spent since the previous stage ended.
+     *
+     * @param stage The name of the stage that just ended
+     */
+    public void mark(String stage)
+    {
+        long now = System.nanoTime();
+        if (count == stages.length)
+        {
+            stages = Arrays.copyOf(stages, count * 2);
+            times = Arrays.copyOf(times, count * 2);
+        }
+        stages[count] = stage;
+        times[count] = now - last;
+        count++;
+        last = now;
+    }
+
+    /** This method stops the clock of the request.
+     */
+    public void finish()
+    {
+        end = System.nanoTime();
+    }
+
+    /**
+     * The time from the start of the request until it finished, or until now if it has not.
+     */
+    public long getElapsedNanos()
+    {
+        return (end == 0 ? System.nanoTime() : end) - start;
+    }
+
+    /** This method gives the time recorded for a stage.
+     *
+     * @return The time, in nanoseconds, or -1 if the stage was not marked.
+     */
+    public long getStageNanos(String stage)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (stages[i].equals(stage))
+            {
+                return times[i];
+            }
+        }
+        return -1;
+    }
+
+    /** This method records what was asked for, once the request has been validated.
+     *
+     * @param request The validated request
+     * @param characters The number of characters of input
+     */
+    public void describe(DecodeRequest request, int characters)
+    {
+        this.request = request;
+        this.characters = characters;
+    }
+
+    public DecodeRequest getRequest() { return request; }
+
+    /** This method records how the request ended, if not successfully.
+     */
+    public void setOutcome(String outcome) { this.outcome = outcome; }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder(128);
+        text.append("request=").append(id).append(" outcome=").append(outcome);
+        text.append(" total=").append(millis(getElapsedNanos())).append("ms");
+        for (int i = 0; i < count; i++)
+        {
+            text.append(' ').append(stages[i]).append('=').append(millis(times[i])).append("ms");
+        }
+        if (request != null)
+        {
+            text.append(" chars=").append(characters).append(' ').append(request);
+        }
+        return text.toString();
+    }
+
+    private static String millis(long nanos)
+    {
+        // One decimal is enough, and avoids the cost of String.format.
+        long tenths = nanos / 100000;
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+}
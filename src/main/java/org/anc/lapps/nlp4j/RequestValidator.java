@@ -0,0 +1,274 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.config.ConfigXML;
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+import org.lappsgrid.serialization.Data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the parameters of a request before any files are written or models are loaded.
+ * <p>
+ * All the accepted values are held in lookup tables built once, so validation only costs
+ * a few map lookups per parameter. Every parameter is checked, and all the errors found
+ * are reported together.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class RequestValidator
+{
+    public static final String TSV_INDICES = "tsv-indices";
+    public static final String TSV_FIELDS = "tsv-fields";
+    public static final String FORMAT = "format";
+    public static final String PIPELINE = "pipeline";
+    public static final String PRINTED = "printed";
+    public static final String MODEL_VERSION = "model-version";
+
+    /**
+     * The system property setting whether the console output is returned when a request does
+     * not say. It is returned by default.
+     */
+    public static final String PRINTED_PROPERTY = "nlp4j.printed";
+
+    private static final boolean printedDefault = Boolean.parseBoolean(System.getProperty(PRINTED_PROPERTY, "true"));
+
+    /**
+     * The node fields that can be read from a TSV column.
+     */
+    private static final Set<String> tsvFields = new HashSet<>(Arrays.asList(
+            ConfigXML.FIELD_ID, ConfigXML.FIELD_FORM, ConfigXML.FIELD_LEMMA, ConfigXML.FIELD_POS,
+            ConfigXML.FIELD_FEATS, ConfigXML.FIELD_DHEAD, ConfigXML.FIELD_DEPREL,
+            ConfigXML.FIELD_SHEADS, ConfigXML.FIELD_NAMENT, ConfigXML.FIELD_COREF));
+
+    private static final Set<String> formats = new HashSet<>(Arrays.asList(
+            NLPDecoder.FORMAT_RAW, NLPDecoder.FORMAT_LINE, NLPDecoder.FORMAT_TSV));
+
+    /**
+     * The values accepted for the flags, and whether they turn the option on.
+     */
+    private static final Map<String, Boolean> flags = new HashMap<>();
+
+    /**
+     * The description of each lexicon parameter used in error messages.
+     */
+    private static final Map<String, String> lexiconDescriptions = new HashMap<>();
+
+    static
+    {
+        flags.put("true", true);
+        flags.put("yes", true);
+        flags.put("false", false);
+        flags.put("no", false);
+
+        lexiconDescriptions.put("ambiguity", "ambiguity classes");
+        lexiconDescriptions.put("clusters", "word clusters");
+        lexiconDescriptions.put("gazetteers", "named entity gazetteers");
+        lexiconDescriptions.put("embeddings", "word embeddings");
+    }
+
+    private RequestValidator() { }
+
+    /** This method checks the parameters of the input data and converts them to a
+     * {@link DecodeRequest}.
+     *
+     * @param data The input data
+     * @return The validated decoding options.
+     * @throws ValidationException If any of the parameters is invalid
+     */
+    public static DecodeRequest validate(Data<String> data) throws ValidationException
+    {
+        DecodeRequest request = new DecodeRequest();
+        List<ValidationError> errors = new ArrayList<>();
+
+        validateColumns(data, request, errors);
+
+        for (String parameter : Lexicon.PARAMETERS)
+        {
+            Object value = data.getParameter(parameter);
+            if (value != null)
+            {
+                Lexicon lexicon = Lexicon.get(parameter, value.toString());
+                if (lexicon == null)
+                {
+                    errors.add(new ValidationError(parameter, value, "Invalid field given for "
+                            + lexiconDescriptions.get(parameter) + ".\r\nGiven: " + value));
+                }
+                else
+                {
+                    request.addLexicon(lexicon);
+                }
+            }
+        }
+
+        request.setPos(validateFlag(data, "pos", errors));
+        request.setNer(validateFlag(data, "ner", errors));
+        request.setDep(validateFlag(data, "dep", errors));
+        request.setPipelined(validateFlag(data, PIPELINE, errors));
+        request.setPrinted(validateFlag(data, PRINTED, printedDefault, errors));
+
+        // The version is only looked up once the request is processed, since the versions
+        // can change while the service runs. A request that does not pin one uses the current one.
+        Object version = data.getParameter(MODEL_VERSION);
+        if (version != null)
+        {
+            if (version.toString().trim().isEmpty())
+            {
+                errors.add(new ValidationError(MODEL_VERSION, version, "No model version given."));
+            }
+            else
+            {
+                request.setModelVersion(version.toString().trim());
+            }
+        }
+
+        // If no format is given, use raw text, which is the default of the NLP4J decoder.
+        Object format = data.getParameter(FORMAT);
+        if (format == null)
+        {
+            request.setFormat(NLPDecoder.FORMAT_RAW);
+        }
+        else if (formats.contains(format.toString()))
+        {
+            request.setFormat(format.toString());
+        }
+        else
+        {
+            errors.add(new ValidationError(FORMAT, format, "Invalid format.\r\nGiven: " + format
+                    + "\r\nExpected one of: " + NLPDecoder.FORMAT_RAW + ", " + NLPDecoder.FORMAT_LINE
+                    + ", " + NLPDecoder.FORMAT_TSV));
+        }
+
+        if (!errors.isEmpty())
+        {
+            throw new ValidationException(errors);
+        }
+        return request;
+    }
+
+    /** This method checks the TSV fields and their indices. If the indices are not given,
+     * the fields are assumed to be listed in the order they appear in the TSV input.
+     */
+    private static void validateColumns(Data<String> data, DecodeRequest request, List<ValidationError> errors)
+    {
+        Object fieldsValue = data.getParameter(TSV_FIELDS);
+        Object indicesValue = data.getParameter(TSV_INDICES);
+        if (fieldsValue == null)
+        {
+            return;
+        }
+
+        List<String> fields = splitList(fieldsValue.toString());
+        List<String> indices = indicesValue == null ? null : splitList(indicesValue.toString());
+
+        if (indices != null && indices.size() != fields.size())
+        {
+            errors.add(new ValidationError(TSV_INDICES, indicesValue,
+                    "The given list of TSV indices and TSV fields did not match.\r\n"
+                    + "Given indices: " + indicesValue + "\r\nGiven fields: " + fieldsValue));
+            return;
+        }
+
+        for (int i = 0; i < fields.size(); i++)
+        {
+            String field = fields.get(i);
+            int index = i;
+            if (indices != null)
+            {
+                index = parseIndex(indices.get(i));
+                if (index < 0)
+                {
+                    errors.add(new ValidationError(TSV_INDICES, indicesValue,
+                            "Invalid TSV index.\r\nGiven: " + indices.get(i)));
+                    continue;
+                }
+            }
+            if (!tsvFields.contains(field))
+            {
+                errors.add(new ValidationError(TSV_FIELDS, fieldsValue, "Invalid TSV field.\r\nGiven: " + field));
+                continue;
+            }
+            request.addColumn(index, field);
+        }
+    }
+
+    /** This method reads a flag, which may be given as a boolean or as one of
+     * "true", "yes", "false" or "no". A missing flag turns the option off.
+     */
+    private static boolean validateFlag(Data<String> data, String parameter, List<ValidationError> errors)
+    {
+        return validateFlag(data, parameter, false, errors);
+    }
+
+    /** This method reads a flag that takes the given value when it is missing.
+     */
+    private static boolean validateFlag(Data<String> data, String parameter, boolean missing, List<ValidationError> errors)
+    {
+        Object value = data.getParameter(parameter);
+        if (value == null)
+        {
+            return missing;
+        }
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+
+        Boolean flag = flags.get(value.toString().toLowerCase());
+        if (flag == null)
+        {
+            errors.add(new ValidationError(parameter, value, "Invalid value given for " + parameter
+                    + ".\r\nGiven: " + value + "\r\nExpected one of: true, yes, false, no"));
+            return missing;
+        }
+        return flag;
+    }
+
+    /** This method splits a comma separated list, removing the white space around each item.
+     */
+    private static List<String> splitList(String list)
+    {
+        List<String> items = new ArrayList<>();
+        int start = 0;
+        int length = list.length();
+        while (start <= length)
+        {
+            int end = list.indexOf(',', start);
+            if (end < 0)
+            {
+                end = length;
+            }
+            items.add(list.substring(start, end).trim());
+            start = end + 1;
+        }
+        return items;
+    }
+
+    /** This method parses a non-negative column index.
+     *
+     * @return The index, or -1 if the text is not a valid index.
+     */
+    private static int parseIndex(String text)
+    {
+        if (text.isEmpty() || text.length() > 9)
+        {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+}
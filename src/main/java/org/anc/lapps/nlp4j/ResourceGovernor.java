@@ -0,0 +1,465 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the decoders loaded for each configuration, and of the memory their models
+ * and lexica take up.
+ * <p>
+ * Since the lexica and models can be combined freely, every new combination loads its own copy
+ * of the files it references. The governor keeps the loaded pipelines under a memory budget:
+ * idle pipelines are evicted in least-recently-used order to make room, requests wait for a
+ * bounded time when the pipelines in use leave no room, and requests that could never fit in
+ * the budget are rejected outright.
+ * <p>
+ * The budget and waiting time can be set with the system properties {@value #BUDGET_PROPERTY}
+ * (in megabytes) and {@value #TIMEOUT_PROPERTY} (in milliseconds).
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ResourceGovernor
+{
+    public static final String BUDGET_PROPERTY = "nlp4j.memory.budget";
+    public static final String TIMEOUT_PROPERTY = "nlp4j.memory.timeout";
+    public static final String EXPANSION_PROPERTY = "nlp4j.memory.expansion";
+
+    private static final long MB = 1024L * 1024L;
+
+    /**
+     * The default waiting time for a request when the budget is taken up by pipelines in use.
+     */
+    private static final long DEFAULT_TIMEOUT = 30000;
+
+    /**
+     * The models and lexica are stored compressed, so a pipeline that has never been
+     * loaded is estimated to take this many times the size of its files.
+     */
+    private static final int DEFAULT_EXPANSION = 8;
+
+    private static final Logger logger = LoggerFactory.getLogger(ResourceGovernor.class);
+
+    private final long budget;
+    private final long timeout;
+    private final int expansion;
+
+    /**
+     * The loaded pipelines, keyed by configuration, in least-recently-used order.
+     */
+    private final LinkedHashMap<String, Pipeline> pipelines = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The measured footprint of every configuration loaded so far, kept after eviction
+     * so that reloading a configuration is estimated from what it really took.
+     */
+    private final Map<String, Long> measured = new HashMap<>();
+
+    /**
+     * The sum of the footprints of all the pipelines in the map.
+     */
+    private long reserved;
+
+    /**
+     * The number of loads in progress, and the number of loads started so far, used to tell
+     * whether a load ran alone.
+     */
+    private int loading;
+    private long loadsStarted;
+
+    /**
+     * The directories of the model versions that have been replaced. A pipeline loaded from
+     * one of them for a request that did not pin its version is retired from the start.
+     */
+    private final Set<String> retiredDirectories = new HashSet<>();
+
+    public ResourceGovernor()
+    {
+        this(Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / MB * 3 / 4) * MB,
+             Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT),
+             Integer.getInteger(EXPANSION_PROPERTY, DEFAULT_EXPANSION));
+    }
+
+    /**
+     * @param budget The maximum memory, in bytes, the loaded pipelines may take up
+     * @param timeout The time, in milliseconds, a request may wait for room in the budget
+     * @param expansion The factor applied to file sizes to estimate unmeasured pipelines
+     */
+    public ResourceGovernor(long budget, long timeout, int expansion)
+    {
+        this.budget = budget;
+        this.timeout = timeout;
+        this.expansion = expansion;
+    }
+
+    public long getBudget() { return budget; }
+
+    public synchronized long getReserved() { return reserved; }
+
+    public synchronized int size() { return pipelines.size(); }
+
+    /** This method reserves the pipeline for the given configuration, evicting idle pipelines
+     * or waiting for pipelines in use to be released if there is not enough room in the budget.
+     * The pipeline must be given back with {@link #release(Pipeline)} once the request is done.
+     *
+     * @param configuration The XML configuration of the decoder
+     * @param resources The paths to the model and lexicon files referenced by the configuration
+     * @return The reserved pipeline, whose decoder may not be loaded yet.
+     * @throws AdmissionException If the configuration does not fit in the budget
+     */
+    public Pipeline acquire(String configuration, List<String> resources) throws AdmissionException
+    {
+        return acquire(configuration, resources, false);
+    }
+
+    /** This method reserves the pipeline for the given configuration, like
+     * {@link #acquire(String, List)}. A request that resolved its model version just before
+     * the version was replaced may get here after the old pipelines were retired. The
+     * pipeline loaded for it is retired as well, so that it is removed once released,
+     * unless the request pinned the old version.
+     *
+     * @param configuration The XML configuration of the decoder
+     * @param resources The paths to the model and lexicon files referenced by the configuration
+     * @param pinned Whether the request asked for its model version by name
+     * @return The reserved pipeline, whose decoder may not be loaded yet.
+     * @throws AdmissionException If the configuration does not fit in the budget
+     */
+    public synchronized Pipeline acquire(String configuration, List<String> resources, boolean pinned)
+            throws AdmissionException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true)
+        {
+            Pipeline pipeline = pipelines.get(configuration);
+            if (pipeline != null)
+            {
+                pipeline.addUser();
+                return pipeline;
+            }
+
+            long needed = estimate(configuration, resources);
+            if (needed > budget)
+            {
+                throw new AdmissionException("The requested models and lexica need an estimated " + needed / MB
+                        + " MB, which exceeds the memory budget of " + budget / MB + " MB.");
+            }
+
+            evict(needed);
+            if (reserved + needed <= budget)
+            {
+                pipeline = new Pipeline(configuration, resources, needed);
+                if (!pinned && isRetired(pipeline))
+                {
+                    pipeline.retire();
+                }
+                pipeline.addUser();
+                pipelines.put(configuration, pipeline);
+                reserved += needed;
+                return pipeline;
+            }
+
+            // Everything that could be evicted is in use, so wait for a release.
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                throw new AdmissionException("The service is at its memory budget of " + budget / MB
+                        + " MB. Please try again later.");
+            }
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new AdmissionException("Interrupted while waiting for memory.", e);
+            }
+        }
+    }
+
+    /** This method returns the decoder of a reserved pipeline, loading it first if this
+     * is the first request to use it. The memory taken up by the load is measured and
+     * replaces the estimated footprint of the pipeline when it is larger. The measure is only
+     * kept for later loads of the configuration if no other load ran at the same time. If the
+     * load fails, the requests waiting for it fail as well.
+     *
+     * @param pipeline A pipeline returned by {@link #acquire(String, List)}
+     * @return The loaded decoder.
+     * @throws AdmissionException If the models or lexica could not be loaded
+     */
+    public NLPDecoder decoder(Pipeline pipeline) throws AdmissionException
+    {
+        NLPDecoder decoder = pipeline.getDecoder();
+        if (decoder != null)
+        {
+            return decoder;
+        }
+
+        synchronized (pipeline)
+        {
+            // The requests that were waiting for a load that failed fail with it, instead of
+            // loading the pipeline again after it has been given up.
+            if (pipeline.getFailure() != null)
+            {
+                throw new AdmissionException("The requested models and lexica could not be loaded.",
+                        pipeline.getFailure());
+            }
+
+            decoder = pipeline.getDecoder();
+            if (decoder == null)
+            {
+                long ticket = startLoad();
+                long before = usedMemory();
+                long measure;
+                try
+                {
+                    decoder = load(pipeline.getConfiguration());
+                    measure = usedMemory() - before;
+                }
+                catch (OutOfMemoryError | RuntimeException e)
+                {
+                    pipeline.fail(e);
+                    discard(pipeline);
+                    logger.error("Unable to load pipeline: {}", e.toString());
+                    throw new AdmissionException("The requested models and lexica could not be loaded.", e);
+                }
+                finally
+                {
+                    ticket = finishLoad(ticket);
+                }
+
+                // The heap may have shrunk or grown for other reasons during the load, so the
+                // measure is only trusted when it is above the estimate from the file sizes, and
+                // when no other load made the heap grow at the same time.
+                long estimate = fileSize(pipeline.getResources()) * expansion;
+                pipeline.setDecoder(decoder);
+                measure(pipeline, Math.max(measure, estimate), ticket >= 0 && measure >= estimate);
+            }
+        }
+        return decoder;
+    }
+
+    /** This method gives back a pipeline reserved by {@link #acquire(String, List)}, making it
+     * eligible for eviction once no other request uses it.
+     *
+     * @param pipeline The pipeline to release
+     */
+    public synchronized void release(Pipeline pipeline)
+    {
+        pipeline.removeUser();
+        if (pipeline.isRetired() && pipeline.getUsers() == 0)
+        {
+            discard(pipeline);
+        }
+        notifyAll();
+    }
+
+    /** This method lists the loaded pipelines that use files under the given directory.
+     *
+     * @param directory The path of the directory, ending with a separator
+     * @return The pipelines whose decoder has been loaded.
+     */
+    public synchronized List<Pipeline> loaded(String directory)
+    {
+        List<Pipeline> loaded = new ArrayList<>();
+        for (Pipeline pipeline : pipelines.values())
+        {
+            if (pipeline.getDecoder() != null && pipeline.uses(directory))
+            {
+                loaded.add(pipeline);
+            }
+        }
+        return loaded;
+    }
+
+    /** This method retires the pipelines that use files under the given directory, once the
+     * files have been replaced by a newer version. Idle pipelines are removed right away, and
+     * the pipelines in use are removed when their last request releases them, so that the
+     * memory of the old files is given back without failing the requests still using them.
+     *
+     * @param directory The path of the directory, ending with a separator
+     * @return The number of pipelines retired.
+     */
+    public synchronized int retire(String directory)
+    {
+        retiredDirectories.add(directory);
+        List<Pipeline> retired = new ArrayList<>();
+        for (Pipeline pipeline : pipelines.values())
+        {
+            if (pipeline.uses(directory))
+            {
+                retired.add(pipeline);
+            }
+        }
+        for (Pipeline pipeline : retired)
+        {
+            pipeline.retire();
+            if (pipeline.getUsers() == 0)
+            {
+                discard(pipeline);
+            }
+        }
+        if (!retired.isEmpty())
+        {
+            logger.info("Retired {} pipelines using {}.", retired.size(), directory);
+        }
+        return retired.size();
+    }
+
+    /** This method brings a directory retired by {@link #retire(String)} back into use, when
+     * requests are switched back to its version. Its pipelines still loaded are kept once
+     * released.
+     *
+     * @param directory The path of the directory, ending with a separator
+     */
+    public synchronized void restore(String directory)
+    {
+        if (retiredDirectories.remove(directory))
+        {
+            for (Pipeline pipeline : pipelines.values())
+            {
+                if (pipeline.uses(directory) && !isRetired(pipeline))
+                {
+                    pipeline.restore();
+                }
+            }
+        }
+    }
+
+    /** This method loads the decoder for a configuration. It is separated from
+     * {@link #decoder(Pipeline)} so that the loading can be replaced in tests.
+     *
+     * @param configuration The XML configuration of the decoder
+     * @return The loaded decoder.
+     */
+    protected NLPDecoder load(String configuration)
+    {
+        return new NLPDecoder(new ByteArrayInputStream(configuration.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** This method estimates the memory needed by a configuration: its measured footprint
+     * if it has been loaded before, or the size of its files scaled by the expansion factor.
+     */
+    private long estimate(String configuration, List<String> resources)
+    {
+        Long footprint = measured.get(configuration);
+        if (footprint != null)
+        {
+            return footprint;
+        }
+        return fileSize(resources) * expansion;
+    }
+
+    /** This method removes idle pipelines, least recently used first, until the given amount
+     * of memory fits in the budget or there is nothing left to evict.
+     */
+    private void evict(long needed)
+    {
+        Iterator<Pipeline> iterator = pipelines.values().iterator();
+        while (reserved + needed > budget && iterator.hasNext())
+        {
+            Pipeline pipeline = iterator.next();
+            if (pipeline.getUsers() == 0)
+            {
+                iterator.remove();
+                reserved -= pipeline.getFootprint();
+                logger.info("Evicted pipeline using {} MB.", pipeline.getFootprint() / MB);
+            }
+        }
+    }
+
+    /** This method replaces the estimated footprint of a loaded pipeline, and keeps it for later
+     * loads of the same configuration if it was really measured.
+     */
+    private synchronized void measure(Pipeline pipeline, long footprint, boolean keep)
+    {
+        if (keep)
+        {
+            measured.put(pipeline.getConfiguration(), footprint);
+        }
+        if (pipelines.get(pipeline.getConfiguration()) == pipeline)
+        {
+            reserved += footprint - pipeline.getFootprint();
+        }
+        pipeline.setFootprint(footprint);
+
+        // The estimate may have been too low, in which case idle pipelines make up the difference.
+        evict(0);
+    }
+
+    /** This method records the start of a load.
+     *
+     * @return The number of loads started so far, or -1 if another load is in progress.
+     */
+    private synchronized long startLoad()
+    {
+        loadsStarted++;
+        return loading++ == 0 ? loadsStarted : -1;
+    }
+
+    /** This method records the end of a load.
+     *
+     * @param ticket The number returned by {@link #startLoad()}
+     * @return The same number if the load ran alone from start to end, or -1 otherwise.
+     */
+    private synchronized long finishLoad(long ticket)
+    {
+        loading--;
+        return ticket == loadsStarted ? ticket : -1;
+    }
+
+    /** This method tells whether a pipeline uses files under a retired directory.
+     */
+    private boolean isRetired(Pipeline pipeline)
+    {
+        for (String directory : retiredDirectories)
+        {
+            if (pipeline.uses(directory))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void discard(Pipeline pipeline)
+    {
+        if (pipelines.get(pipeline.getConfiguration()) == pipeline)
+        {
+            pipelines.remove(pipeline.getConfiguration());
+            reserved -= pipeline.getFootprint();
+        }
+        notifyAll();
+    }
+
+    private static long fileSize(List<String> resources)
+    {
+        long size = 0;
+        for (String resource : resources)
+        {
+            size += new File(resource).length();
+        }
+        return size;
+    }
+
+    /** This method gives the memory in use on the heap. It is separated from
+     * {@link #decoder(Pipeline)} so that it can be replaced in tests.
+     */
+    protected long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,177 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+import edu.emory.mathcs.nlp.component.tokenizer.Tokenizer;
+import edu.emory.mathcs.nlp.component.tokenizer.token.Token;
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Turns an input document into the node arrays of its sentences, in the same way the
+ * NLP4J decoder does for each format: raw text is tokenized and split into sentences,
+ * every line of "line" input is a sentence, and "tsv" input is read with a
+ * {@link TSVSliceReader}. The sentences are read lazily, as they are asked for.
+ * <p>
+ * Raw text is tokenized a block of lines at a time rather than as a whole, so that the first
+ * sentences can be decoded while the rest of the document is still being tokenized. Tokens never
+ * span lines, so only the splitting into sentences needs care: the last sentence of a block may
+ * go on in the next block, so it is held back and split again with the tokens of the next block.
+ * A sentence held back is only split again once at least as many tokens have been added to it,
+ * so that a long run of text without sentence breaks is split a number of times that grows with
+ * the log of its length rather than once per block. The sentences and the offsets of their
+ * tokens are the same as when the whole text is split.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class SentenceReader implements Iterator<NLPNode[]>
+{
+    private final NLPDecoder decoder;
+    private final String format;
+    private final String text;
+
+    /**
+     * The number of characters of raw text tokenized at a time, rounded up to the end of a line.
+     */
+    static final int BLOCK_SIZE = 2048;
+
+    private final int blockSize;
+
+    private TSVSliceReader tsvReader;
+    private int position;
+
+    /**
+     * The sentences of raw text split so far, and the tokens of the last sentence, which may
+     * go on in the next block.
+     */
+    private final Deque<List<Token>> segments = new ArrayDeque<>();
+    private List<Token> pending = new ArrayList<>();
+
+    /**
+     * The number of tokens at the start of the pending ones that were split without finding
+     * the end of their sentence.
+     */
+    private int held;
+
+    private NLPNode[] next;
+
+    /**
+     * @param decoder The decoder whose tokenizer is used for raw and line input
+     * @param format The format of the input
+     * @param tsvReader The reader for tsv input, which may be null for other formats
+     * @param text The input document
+     */
+    public SentenceReader(NLPDecoder decoder, String format, TSVSliceReader tsvReader, String text)
+    {
+        this(decoder, format, tsvReader, text, BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize The number of characters of raw text tokenized at a time
+     */
+    SentenceReader(NLPDecoder decoder, String format, TSVSliceReader tsvReader, String text, int blockSize)
+    {
+        this.decoder = decoder;
+        this.format = format;
+        this.text = text;
+        this.blockSize = Math.max(1, blockSize);
+
+        if (NLPDecoder.FORMAT_TSV.equals(format))
+        {
+            this.tsvReader = tsvReader;
+            tsvReader.open(text);
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (next == null)
+        {
+            next = read();
+        }
+        return next != null;
+    }
+
+    @Override
+    public NLPNode[] next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        NLPNode[] nodes = next;
+        next = null;
+        return nodes;
+    }
+
+    private NLPNode[] read()
+    {
+        switch (format)
+        {
+            case NLPDecoder.FORMAT_TSV:
+                return tsvReader.next();
+            case NLPDecoder.FORMAT_RAW:
+                return readSegment();
+            default:
+                return readLine();
+        }
+    }
+
+    /** This method gives the next sentence of raw text, tokenizing blocks of lines until a
+     * sentence is known to be complete or the text is over.
+     */
+    private NLPNode[] readSegment()
+    {
+        Tokenizer tokenizer = decoder.getTokenizer();
+        while (segments.isEmpty() && position < text.length())
+        {
+            int start = position;
+            int end = text.indexOf('\n', Math.min(text.length(), start + blockSize));
+            position = end < 0 ? text.length() : end + 1;
+
+            // The tokens are given the offsets they would have in the whole text.
+            for (Token token : tokenizer.tokenize(text.substring(start, position)))
+            {
+                token.setStartOffset(token.getStartOffset() + start);
+                token.setEndOffset(token.getEndOffset() + start);
+                pending.add(token);
+            }
+            if (pending.isEmpty() || position < text.length() && pending.size() - held < held)
+            {
+                continue;
+            }
+
+            segments.addAll(tokenizer.segmentize(pending));
+            List<Token> last = position < text.length() ? segments.pollLast() : null;
+            pending = last != null ? new ArrayList<>(last) : new ArrayList<>();
+            held = pending.size();
+        }
+        return segments.isEmpty() ? null : decoder.toNodeArray(segments.poll());
+    }
+
+    /** This method tokenizes the next line of the input. Like a {@code BufferedReader}, it
+     * treats a final line break as the end of the input rather than as an empty line.
+     */
+    private NLPNode[] readLine()
+    {
+        if (position >= text.length())
+        {
+            return null;
+        }
+        int end = text.indexOf('\n', position);
+        if (end < 0)
+        {
+            end = text.length();
+        }
+        int lineEnd = end > position && text.charAt(end - 1) == '\r' ? end - 1 : end;
+        String line = text.substring(position, lineEnd);
+        position = end + 1;
+        return decoder.toNodeArray(decoder.getTokenizer().tokenize(line));
+    }
+}
@@ -0,0 +1,459 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits large requests into shards, sends them to a list of peer services, and merges the
+ * results back in order.
+ * <p>
+ * Every input document is a shard. Documents longer than the shard size are split further at
+ * sentence boundaries when the format makes them explicit: every line for "line" input, and
+ * every blank line for "tsv" input. Raw text is never split, since its sentences are only
+ * found by the decoder.
+ * <p>
+ * Each shard goes to the peer with the least work in flight, weighted by how fast the peer has
+ * been so far. A shard that fails on a peer, because the peer could not be reached, was at its
+ * memory budget or could not load the models, is retried on another peer, up to a number of
+ * attempts, and the failing peer is chosen less often for a while. Only an error the peer marked
+ * with {@value #INPUT_ERROR_PARAMETER}, such as invalid input, or a request the peer refused
+ * with an HTTP client error, would be the same on every peer, so it is returned at once and the
+ * other shards of the request are cancelled.
+ * <p>
+ * The peers are set with the system property {@value #PEERS_PROPERTY}, as a comma separated
+ * list of URLs. The shard size (in characters) and the number of attempts can be set with
+ * {@value #SHARD_SIZE_PROPERTY} and {@value #ATTEMPTS_PROPERTY}.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ShardCoordinator
+{
+    public static final String PEERS_PROPERTY = "nlp4j.peers";
+    public static final String SHARD_SIZE_PROPERTY = "nlp4j.shard.size";
+    public static final String ATTEMPTS_PROPERTY = "nlp4j.shard.attempts";
+    public static final String TIMEOUT_PROPERTY = "nlp4j.shard.timeout";
+
+    /**
+     * Set on the requests sent to the peers, so that they decode the shard themselves
+     * instead of sharding it again.
+     */
+    public static final String SHARD_PARAMETER = "shard";
+
+    /**
+     * Set by a service on an error caused by the input of the request, which no other peer
+     * could decode either.
+     */
+    public static final String INPUT_ERROR_PARAMETER = "input-error";
+
+    private static final int DEFAULT_SHARD_SIZE = 100000;
+    private static final int DEFAULT_ATTEMPTS = 3;
+    private static final int DEFAULT_TIMEOUT = 600000;
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    private final List<Peer> peers = new ArrayList<>();
+    private final int shardSize;
+    private final int attempts;
+    private final ExecutorService executor;
+
+    /**
+     * @param endpoints The peers the shards are sent to
+     * @param shardSize The number of characters above which a document is split
+     * @param attempts The number of peers a shard is tried on before giving up
+     */
+    public ShardCoordinator(List<? extends Endpoint> endpoints, int shardSize, int attempts)
+    {
+        for (Endpoint endpoint : endpoints)
+        {
+            peers.add(new Peer(endpoint));
+        }
+        this.shardSize = shardSize;
+        this.attempts = attempts;
+
+        // Two shards per peer keeps every peer busy while the next shard is on its way.
+        this.executor = Executors.newFixedThreadPool(Math.max(1, 2 * endpoints.size()), runnable -> {
+            Thread thread = new Thread(runnable, "nlp4j-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** This method creates a coordinator for the peers set in the system properties.
+     *
+     * @return The coordinator, or null if no peers are set.
+     */
+    public static ShardCoordinator fromProperties()
+    {
+        String peerList = System.getProperty(PEERS_PROPERTY);
+        if (peerList == null || peerList.trim().isEmpty())
+        {
+            return null;
+        }
+
+        int timeout = Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String peer : peerList.split(","))
+        {
+            if (!peer.trim().isEmpty())
+            {
+                try
+                {
+                    endpoints.add(new HttpEndpoint(new URL(peer.trim()), timeout));
+                }
+                catch (MalformedURLException e)
+                {
+                    throw new IllegalArgumentException("Invalid peer URL in " + PEERS_PROPERTY + ": " + peer, e);
+                }
+            }
+        }
+        return new ShardCoordinator(endpoints,
+                Integer.getInteger(SHARD_SIZE_PROPERTY, DEFAULT_SHARD_SIZE),
+                Integer.getInteger(ATTEMPTS_PROPERTY, DEFAULT_ATTEMPTS));
+    }
+
+    /** This method decodes the inputs of a request on the peers.
+     *
+     * @param data The input data, whose parameters are passed on to the peers
+     * @param payload The payload of the input data
+     * @param format The validated format of the request
+     * @return A Map holding the output of each input, with the same keys as a local decode.
+     * @throws ShardException If a shard failed on every peer it was tried on, or was rejected by a peer
+     */
+    public Map<String,String> execute(Data<String> data, Map<String,String> payload, String format) throws ShardException
+    {
+        return execute(data, payload, format, null);
+    }
+
+    /** This method decodes the inputs of a request on the peers, all with the given model
+     * version, so that the shards of a document are not decoded with different versions
+     * while the peers switch to a new one. A peer that does not have the version fails the
+     * shard, which is then tried on another peer.
+     *
+     * @param data The input data, whose parameters are passed on to the peers
+     * @param payload The payload of the input data
+     * @param format The validated format of the request
+     * @param modelVersion The name of the model version, or null to let each peer use its current version
+     * @return A Map holding the output of each input, with the same keys as a local decode.
+     * @throws ShardException If a shard failed on every peer it was tried on, or was rejected by a peer
+     */
+    public Map<String,String> execute(Data<String> data, Map<String,String> payload, String format,
+                                      String modelVersion) throws ShardException
+    {
+        // Split each input into shards, and send them all before waiting for any result.
+        List<List<Future<Map<String,String>>>> documents = new ArrayList<>();
+        for (String key : payload.keySet())
+        {
+            if (key.contains("input"))
+            {
+                List<Future<Map<String,String>>> shards = new ArrayList<>();
+                for (String shard : split(payload.get(key), format))
+                {
+                    String request = makeRequest(data, shard, modelVersion);
+                    shards.add(executor.submit(() -> send(request)));
+                }
+                documents.add(shards);
+            }
+        }
+
+        // Merge the results in the order of the inputs and of the shards within them.
+        Map<String,String> outputPayload = new HashMap<>();
+        StringBuilder printed = new StringBuilder();
+        for (int i = 0; i < documents.size(); i++)
+        {
+            StringBuilder output = new StringBuilder();
+            for (Future<Map<String,String>> shard : documents.get(i))
+            {
+                Map<String,String> result;
+                try
+                {
+                    result = get(shard);
+                }
+                catch (ShardException e)
+                {
+                    // The request has failed, so the shards still waiting are not sent.
+                    cancel(documents);
+                    throw e;
+                }
+                if (result.get("output-file-1") != null)
+                {
+                    output.append(result.get("output-file-1"));
+                }
+                if (result.get("Printed") != null)
+                {
+                    printed.append(result.get("Printed"));
+                }
+            }
+            outputPayload.put("output-file-" + (i + 1), output.toString());
+        }
+        outputPayload.put("Printed", printed.toString());
+        return outputPayload;
+    }
+
+    /** This method cancels the shards of a request that have not been decoded yet.
+     */
+    private static void cancel(List<List<Future<Map<String,String>>>> documents)
+    {
+        for (List<Future<Map<String,String>>> shards : documents)
+        {
+            for (Future<Map<String,String>> shard : shards)
+            {
+                shard.cancel(true);
+            }
+        }
+    }
+
+    /** This method stops the threads sending the shards.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /** This method splits a document at the sentence boundaries of its format into shards
+     * of about the shard size.
+     *
+     * @param text The document
+     * @param format The format of the document
+     * @return A List holding the shards, in order.
+     */
+    List<String> split(String text, String format)
+    {
+        boolean tsv = NLPDecoder.FORMAT_TSV.equals(format);
+        if (text.length() <= shardSize || !(tsv || NLPDecoder.FORMAT_LINE.equals(format)))
+        {
+            return Collections.singletonList(text);
+        }
+
+        List<String> shards = new ArrayList<>();
+        int start = 0;
+        while (text.length() - start > shardSize)
+        {
+            int end = boundary(text, start + shardSize, tsv);
+            if (end < 0)
+            {
+                break;
+            }
+            shards.add(text.substring(start, end));
+            start = end;
+        }
+        if (start < text.length())
+        {
+            shards.add(text.substring(start));
+        }
+        return shards;
+    }
+
+    /** This method finds the first sentence boundary at or after a position: the end of the
+     * line for "line" input, or the end of the next blank line for "tsv" input.
+     *
+     * @return The index just after the boundary, or -1 if there is none.
+     */
+    private static int boundary(String text, int from, boolean tsv)
+    {
+        int newline = text.indexOf('\n', from);
+        while (newline >= 0)
+        {
+            if (!tsv)
+            {
+                return newline + 1;
+            }
+
+            // A blank line ends a TSV sentence.
+            int next = newline + 1;
+            while (next < text.length() && text.charAt(next) == '\r')
+            {
+                next++;
+            }
+            if (next < text.length() && text.charAt(next) == '\n')
+            {
+                return next + 1;
+            }
+            newline = text.indexOf('\n', next);
+        }
+        return -1;
+    }
+
+    /** This method creates the request for a shard, with the parameters of the original request
+     * and the model version it is decoded with, if one is given.
+     */
+    private static String makeRequest(Data<String> data, String shard, String modelVersion)
+    {
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", shard);
+        Data<String> request = new Data<>(Discriminators.Uri.GET, Serializer.toJson(payload));
+        if (data.getParameters() != null)
+        {
+            for (Object name : data.getParameters().keySet())
+            {
+                request.setParameter(name.toString(), data.getParameter(name.toString()));
+            }
+        }
+        if (modelVersion != null)
+        {
+            request.setParameter(RequestValidator.MODEL_VERSION, modelVersion);
+        }
+        request.setParameter(SHARD_PARAMETER, true);
+        return request.asJson();
+    }
+
+    /** This method sends a shard to the peers, starting with the least loaded one and moving
+     * on to the others if it could not be reached or failed to decode the shard.
+     *
+     * @return The output payload of the peer that decoded the shard.
+     * @throws ShardException If the shard failed on every peer tried, or its input was rejected by a peer
+     */
+    private Map<String,String> send(String request) throws ShardException
+    {
+        Set<Peer> tried = new HashSet<>();
+        String lastError = "No peers available.";
+        for (int attempt = 0; attempt < attempts; attempt++)
+        {
+            Peer peer = choose(tried);
+            if (peer == null)
+            {
+                break;
+            }
+            tried.add(peer);
+
+            long start = System.nanoTime();
+            boolean answered = false;
+            try
+            {
+                @SuppressWarnings("unchecked")
+                Data<Object> result = Serializer.parse(peer.endpoint.execute(request), Data.class);
+
+                if (Discriminators.Uri.LAPPS.equals(result.getDiscriminator()))
+                {
+                    answered = true;
+                    @SuppressWarnings("unchecked")
+                    Map<String,String> output = Serializer.parse(result.getPayload().toString(), HashMap.class);
+                    return output;
+                }
+
+                // An error of the input would be the same on every peer. Any other error, such as
+                // a peer at its memory budget, may pass on another peer.
+                if (Boolean.TRUE.equals(result.getParameter(INPUT_ERROR_PARAMETER)))
+                {
+                    answered = true;
+                    throw new ShardException(String.valueOf(result.getPayload()));
+                }
+                lastError = String.valueOf(result.getPayload());
+            }
+            catch (HttpStatusException e)
+            {
+                if (!e.isRetryable())
+                {
+                    answered = true;
+                    throw new ShardException("A shard was refused by " + peer.endpoint + ".\r\n" + e.getMessage(), e);
+                }
+                lastError = e.getMessage();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                lastError = e.getMessage();
+            }
+            finally
+            {
+                finish(peer, System.nanoTime() - start, answered);
+            }
+            logger.warn("Shard failed on {}: {}", peer.endpoint, lastError);
+        }
+        throw new ShardException("A shard could not be decoded after " + tried.size() + " attempts.\r\n"
+                + "Last error: " + lastError);
+    }
+
+    /** This method picks the peer with the lowest expected waiting time among those not tried
+     * yet: the work in flight on the peer, times the average time it has taken per shard.
+     */
+    private synchronized Peer choose(Set<Peer> tried)
+    {
+        Peer best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Peer peer : peers)
+        {
+            if (!tried.contains(peer))
+            {
+                double score = (peer.inFlight + 1) * peer.latency;
+                if (score < bestScore)
+                {
+                    best = peer;
+                    bestScore = score;
+                }
+            }
+        }
+        if (best != null)
+        {
+            best.inFlight++;
+        }
+        return best;
+    }
+
+    /** This method records the outcome of a shard on a peer. Failing to answer doubles the
+     * latency of the peer, so that failing peers are chosen less often until they recover.
+     */
+    private synchronized void finish(Peer peer, long elapsed, boolean answered)
+    {
+        peer.inFlight--;
+        double millis = Math.max(1.0, elapsed / 1e6);
+        peer.latency = answered ? 0.8 * peer.latency + 0.2 * millis : 2 * peer.latency;
+    }
+
+    private static Map<String,String> get(Future<Map<String,String>> shard) throws ShardException
+    {
+        try
+        {
+            return shard.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ShardException("Interrupted while waiting for a shard.", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof ShardException)
+            {
+                throw (ShardException) e.getCause();
+            }
+            throw new ShardException("A shard could not be decoded.", e.getCause());
+        }
+    }
+
+    /**
+     * A peer with the load statistics used to place the shards.
+     */
+    private static class Peer
+    {
+        final Endpoint endpoint;
+        int inFlight;
+
+        /**
+         * The moving average of the time per shard on the peer, in milliseconds.
+         */
+        double latency = 1.0;
+
+        Peer(Endpoint endpoint)
+        {
+            this.endpoint = endpoint;
+        }
+    }
+}
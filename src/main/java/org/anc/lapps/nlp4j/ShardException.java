@@ -0,0 +1,24 @@
+package org.anc.lapps.nlp4j;
+
+/**
+ * Thrown by the {@link ShardCoordinator} when a shard could not be decoded by any of the
+ * peers, or when a peer rejected the shard itself, in which case the message is the error
+ * returned by the peer. The message is meant to be wrapped in an error {@code Data} object and returned
+ * to the user.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ShardException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public ShardException(String message)
+    {
+        super(message);
+    }
+
+    public ShardException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,120 @@
+package org.anc.lapps.nlp4j;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Records the traces of slow requests, so that the stage they spent their time in can be
+ * looked up after the fact.
+ * <p>
+ * A request is slow when it takes longer than the threshold. A sample of the slow requests
+ * is logged at the WARN level, and the most recent ones are kept in memory. Requests under the
+ * threshold cost one comparison.
+ * <p>
+ * Tracing is turned on by setting the threshold, in milliseconds, with the system property
+ * {@value #THRESHOLD_PROPERTY}. The fraction of slow requests recorded and the number of traces
+ * kept can be set with {@value #SAMPLE_PROPERTY} and {@value #SIZE_PROPERTY}.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class SlowRequestTracer
+{
+    public static final String THRESHOLD_PROPERTY = "nlp4j.trace.threshold";
+    public static final String SAMPLE_PROPERTY = "nlp4j.trace.sample";
+    public static final String SIZE_PROPERTY = "nlp4j.trace.size";
+
+    private static final int DEFAULT_SIZE = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowRequestTracer.class);
+
+    private final long threshold;
+    private final double sample;
+
+    /**
+     * The most recent traces, in a ring starting at {@link #next}.
+     */
+    private final String[] recent;
+    private int next;
+    private long recorded;
+
+    /**
+     * @param threshold The time, in milliseconds, above which a request is slow
+     * @param sample The fraction of slow requests that are recorded
+     * @param size The number of traces kept in memory
+     */
+    public SlowRequestTracer(long threshold, double sample, int size)
+    {
+        this.threshold = threshold * 1000000L;
+        this.sample = sample;
+        this.recent = new String[Math.max(1, size)];
+    }
+
+    /** This method creates a tracer with the threshold, sample and size set in the system properties.
+     *
+     * @return The tracer, or null if no threshold is set.
+     */
+    public static SlowRequestTracer fromProperties()
+    {
+        Long threshold = Long.getLong(THRESHOLD_PROPERTY);
+        if (threshold == null || threshold < 0)
+        {
+            return null;
+        }
+        String sample = System.getProperty(SAMPLE_PROPERTY);
+        return new SlowRequestTracer(threshold,
+                sample == null ? 1.0 : Double.parseDouble(sample),
+                Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+    }
+
+    /** This method records the trace of a finished request if the request was slow and is
+     * part of the sample.
+     *
+     * @param trace The trace of the request
+     * @return Whether the trace was recorded.
+     */
+    public boolean record(RequestTrace trace)
+    {
+        if (trace.getElapsedNanos() < threshold)
+        {
+            return false;
+        }
+        if (sample < 1.0 && ThreadLocalRandom.current().nextDouble() >= sample)
+        {
+            return false;
+        }
+
+        String text = trace.toString();
+        synchronized (this)
+        {
+            recent[next] = text;
+            next = (next + 1) % recent.length;
+            recorded++;
+        }
+        logger.warn("Slow request {}", text);
+        return true;
+    }
+
+    /** This method lists the most recent slow requests recorded.
+     *
+     * @return A List holding the traces, oldest first.
+     */
+    public synchronized List<String> getRecent()
+    {
+        List<String> traces = new ArrayList<>();
+        for (int i = 0; i < recent.length; i++)
+        {
+            String trace = recent[(next + i) % recent.length];
+            if (trace != null)
+            {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    public synchronized long getRecorded() { return recorded; }
+}
@@ -0,0 +1,312 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.config.ConfigXML;
+import edu.emory.mathcs.nlp.component.template.node.FeatMap;
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads pre-tokenized TSV input straight from the request payload into decoder nodes.
+ * <p>
+ * This replaces writing the payload to a temporary file and reading it back with the NLP4J
+ * {@code TSVReader}, which splits every line into an array of strings. Here each line is
+ * scanned once for its tab positions, and only the configured columns are copied out of the
+ * payload, directly into the fields of the node. Sentences are separated by blank lines, and
+ * a value of "_" in the head columns means the value is missing, as in NLP4J. A head that is
+ * not the id of a token of its sentence, or of the root, is reported with its line number.
+ * <p>
+ * A reader keeps its buffers between sentences and between inputs, and is not thread safe.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class TSVSliceReader
+{
+    private static final String BLANK = "_";
+
+    private int form = -1;
+    private int lemma = -1;
+    private int pos = -1;
+    private int nament = -1;
+    private int feats = -1;
+    private int dhead = -1;
+    private int deprel = -1;
+    private int sheads = -1;
+
+    private CharSequence text;
+    private int position;
+
+    /**
+     * The number of lines read so far, and the line of the first node of the current sentence.
+     */
+    private int line;
+    private int sentenceLine;
+
+    /**
+     * The offsets of the columns of the current line: column i goes from starts[i] to ends[i].
+     */
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int columnCount;
+
+    /**
+     * The nodes of the current sentence, with the head columns that can only be resolved
+     * once the whole sentence has been read.
+     */
+    private final List<NLPNode> nodes = new ArrayList<>();
+    private final List<String> heads = new ArrayList<>();
+    private final List<String> labels = new ArrayList<>();
+    private final List<String> semanticHeads = new ArrayList<>();
+
+    /**
+     * @param columns The TSV columns of the request. If none are given, the first column
+     *                is read as the word form.
+     */
+    public TSVSliceReader(List<DecodeRequest.Column> columns)
+    {
+        setColumns(columns);
+    }
+
+    /** This method sets the columns read, so that the reader and its buffers can be used again
+     * for another request.
+     *
+     * @param columns The TSV columns of the request. If none are given, the first column
+     *                is read as the word form.
+     */
+    public void setColumns(List<DecodeRequest.Column> columns)
+    {
+        form = lemma = pos = nament = feats = dhead = deprel = sheads = -1;
+        if (columns.isEmpty())
+        {
+            form = 0;
+        }
+        for (DecodeRequest.Column column : columns)
+        {
+            switch (column.field)
+            {
+                case ConfigXML.FIELD_FORM: form = column.index; break;
+                case ConfigXML.FIELD_LEMMA: lemma = column.index; break;
+                case ConfigXML.FIELD_POS: pos = column.index; break;
+                case ConfigXML.FIELD_NAMENT: nament = column.index; break;
+                case ConfigXML.FIELD_FEATS: feats = column.index; break;
+                case ConfigXML.FIELD_DHEAD: dhead = column.index; break;
+                case ConfigXML.FIELD_DEPREL: deprel = column.index; break;
+                case ConfigXML.FIELD_SHEADS: sheads = column.index; break;
+                // The other fields are not read by the decoder.
+                default: break;
+            }
+        }
+    }
+
+    /** This method starts reading the given text from its beginning.
+     *
+     * @param text The TSV input
+     */
+    public void open(CharSequence text)
+    {
+        this.text = text;
+        this.position = 0;
+        this.line = 0;
+    }
+
+    /** This method lets go of the input and of the nodes of the last sentence, keeping the
+     * buffers for the next input.
+     */
+    public void close()
+    {
+        this.text = null;
+        this.position = 0;
+        this.line = 0;
+        nodes.clear();
+        heads.clear();
+        labels.clear();
+        semanticHeads.clear();
+    }
+
+    /** This method reads the next sentence of the input.
+     *
+     * @return The nodes of the sentence, preceded by the root node, or null at the end of the input.
+     * @throws InputFormatException If a head column of the sentence is invalid
+     */
+    public NLPNode[] next()
+    {
+        nodes.clear();
+        heads.clear();
+        labels.clear();
+        semanticHeads.clear();
+
+        int length = text.length();
+        while (position < length)
+        {
+            int lineEnd = position;
+            while (lineEnd < length && text.charAt(lineEnd) != '\n')
+            {
+                lineEnd++;
+            }
+            int lineStart = position;
+            position = lineEnd + 1;
+            line++;
+            if (lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r')
+            {
+                lineEnd--;
+            }
+
+            if (isBlank(lineStart, lineEnd))
+            {
+                if (nodes.isEmpty())
+                {
+                    continue;
+                }
+                break;
+            }
+            if (nodes.isEmpty())
+            {
+                sentenceLine = line;
+            }
+            readLine(lineStart, lineEnd);
+        }
+
+        return nodes.isEmpty() ? null : toNodeArray();
+    }
+
+    /** This method finds the columns of a line in one pass, and creates its node.
+     */
+    private void readLine(int start, int end)
+    {
+        columnCount = 0;
+        int columnStart = start;
+        for (int i = start; i <= end; i++)
+        {
+            if (i == end || text.charAt(i) == '\t')
+            {
+                if (columnCount == starts.length)
+                {
+                    starts = Arrays.copyOf(starts, columnCount * 2);
+                    ends = Arrays.copyOf(ends, columnCount * 2);
+                }
+                starts[columnCount] = columnStart;
+                ends[columnCount] = i;
+                columnCount++;
+                columnStart = i + 1;
+            }
+        }
+
+        String featsValue = column(feats);
+        NLPNode node = new NLPNode();
+        node.set(nodes.size() + 1, column(form), column(lemma), column(pos), column(nament),
+                featsValue != null ? new FeatMap(featsValue) : new FeatMap(), null, null);
+        nodes.add(node);
+        heads.add(column(dhead));
+        labels.add(column(deprel));
+        semanticHeads.add(column(sheads));
+    }
+
+    /** This method creates the node array of the sentence, with the root node at index 0,
+     * and links each node to its dependency and semantic heads if they were given.
+     */
+    private NLPNode[] toNodeArray()
+    {
+        NLPNode[] array = new NLPNode[nodes.size() + 1];
+        array[0] = new NLPNode().toRoot();
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            array[i + 1] = nodes.get(i);
+        }
+
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            String head = heads.get(i);
+            if (head != null && !BLANK.equals(head))
+            {
+                nodes.get(i).setDependencyHead(array[parseHead(head, array.length, i)], labels.get(i));
+            }
+
+            // Semantic heads are given as "head:label" pairs separated by semicolons.
+            String semantic = semanticHeads.get(i);
+            if (semantic != null && !BLANK.equals(semantic))
+            {
+                int start = 0;
+                while (start < semantic.length())
+                {
+                    int end = semantic.indexOf(';', start);
+                    if (end < 0)
+                    {
+                        end = semantic.length();
+                    }
+                    int colon = semantic.indexOf(':', start);
+                    if (colon < start || colon >= end)
+                    {
+                        throw invalid("semantic head", semantic, i);
+                    }
+                    int id = parseHead(semantic.substring(start, colon), array.length, i);
+                    nodes.get(i).addSemanticHead(array[id], semantic.substring(colon + 1, end));
+                    start = end + 1;
+                }
+            }
+        }
+        return array;
+    }
+
+    /** This method parses the id of a head, which must be the root or a token of the sentence.
+     *
+     * @param head The id given in the head column
+     * @param count The number of nodes of the sentence, with the root
+     * @param node The index of the node whose head it is, without the root
+     * @return The id of the head.
+     */
+    private int parseHead(String head, int count, int node)
+    {
+        if (head.isEmpty() || head.length() > 9)
+        {
+            throw invalid("head", head, node);
+        }
+        int id = 0;
+        for (int i = 0; i < head.length(); i++)
+        {
+            char c = head.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                throw invalid("head", head, node);
+            }
+            id = id * 10 + (c - '0');
+        }
+        if (id >= count)
+        {
+            throw invalid("head", head, node);
+        }
+        return id;
+    }
+
+    private InputFormatException invalid(String column, String value, int node)
+    {
+        return new InputFormatException("Invalid " + column + " on line " + (sentenceLine + node)
+                + " of the TSV input.\r\nGiven: " + value);
+    }
+
+    /** This method copies a column of the current line out of the input.
+     *
+     * @return The value of the column, or null if the column is not configured or not in the line.
+     */
+    private String column(int index)
+    {
+        if (index < 0 || index >= columnCount)
+        {
+            return null;
+        }
+        return text.subSequence(starts[index], ends[index]).toString();
+    }
+
+    private boolean isBlank(int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (!Character.isWhitespace(text.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
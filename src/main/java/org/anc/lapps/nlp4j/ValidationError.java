@@ -0,0 +1,37 @@
+package org.anc.lapps.nlp4j;
+
+/**
+ * A problem found in one of the parameters of a request.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ValidationError
+{
+    /**
+     * The name of the parameter, e.g. "clusters".
+     */
+    public final String parameter;
+
+    /**
+     * The value that was given for the parameter.
+     */
+    public final Object value;
+
+    /**
+     * A description of the problem, meant to be read by the user.
+     */
+    public final String message;
+
+    public ValidationError(String parameter, Object value, String message)
+    {
+        this.parameter = parameter;
+        this.value = value;
+        this.message = message;
+    }
+
+    @Override
+    public String toString()
+    {
+        return message;
+    }
+}
@@ -0,0 +1,40 @@
+package org.anc.lapps.nlp4j;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by the {@link RequestValidator} when a request has invalid parameters. It holds
+ * every error found, and its message lists them all so that it can be wrapped in an error
+ * {@code Data} object and returned to the user.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class ValidationException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    private final List<ValidationError> errors;
+
+    public ValidationException(List<ValidationError> errors)
+    {
+        super(join(errors));
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    public List<ValidationError> getErrors() { return errors; }
+
+    private static String join(List<ValidationError> errors)
+    {
+        StringBuilder message = new StringBuilder();
+        for (ValidationError error : errors)
+        {
+            if (message.length() > 0)
+            {
+                message.append("\r\n\r\n");
+            }
+            message.append(error.message);
+        }
+        return message.toString();
+    }
+}
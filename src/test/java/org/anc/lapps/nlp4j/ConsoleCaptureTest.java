@@ -0,0 +1,144 @@
+package org.anc.lapps.nlp4j;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class ConsoleCaptureTest
+{
+    @Before
+    public void setup()
+    {
+        ConsoleCapture.install();
+    }
+
+    @After
+    public void cleanup()
+    {
+        ConsoleCapture.uninstall();
+    }
+
+    @Test
+    public void testOverlappingCaptures() throws Exception
+    {
+        // The captures are opened A then B, and closed A then B.
+        CountDownLatch firstOpen = new CountDownLatch(1);
+        CountDownLatch secondOpen = new CountDownLatch(1);
+        CountDownLatch firstClosed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<String> first = executor.submit(() -> {
+            try (ConsoleCapture console = new ConsoleCapture(true, DecodeWorkspace.get()))
+            {
+                firstOpen.countDown();
+                secondOpen.await();
+                System.out.print("first");
+                return console.getText();
+            }
+            finally
+            {
+                firstClosed.countDown();
+            }
+        });
+        Future<String> second = executor.submit(() -> {
+            firstOpen.await();
+            try (ConsoleCapture console = new ConsoleCapture(true, DecodeWorkspace.get()))
+            {
+                secondOpen.countDown();
+                firstClosed.await();
+                System.out.print("second");
+                return console.getText();
+            }
+        });
+        assertEquals("first", first.get());
+        assertEquals("second", second.get());
+
+        // Once both captures are closed, both threads print to the console again.
+        PrintStream out = System.out;
+        for (int i = 0; i < 4; i++)
+        {
+            assertNull("A capture was left open", executor.submit(ConsoleCapture::sink).get());
+        }
+        assertSame("System.out was swapped", out, System.out);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDiscardAndNesting()
+    {
+        DecodeWorkspace workspace = DecodeWorkspace.get();
+        try (ConsoleCapture outer = new ConsoleCapture(true, workspace))
+        {
+            System.out.print("kept");
+            PrintStream sink = ConsoleCapture.sink();
+            try (ConsoleCapture inner = new ConsoleCapture(false, workspace))
+            {
+                System.out.print("discarded");
+                assertNull(inner.getText());
+            }
+            assertSame("The outer capture was not restored", sink, ConsoleCapture.sink());
+            assertEquals("kept", outer.getText());
+        }
+        assertNull(ConsoleCapture.sink());
+    }
+
+    @Test
+    public void testUninstall()
+    {
+        PrintStream router = System.out;
+        ConsoleCapture.install();
+        assertSame("The router was installed twice", router, System.out);
+
+        ConsoleCapture.uninstall();
+        assertFalse("System.out was not given back", System.out instanceof ConsoleCapture.Router);
+        assertSame(((ConsoleCapture.Router) router).getConsole(), System.out);
+    }
+
+    @Test
+    public void testForeignRouterSkipped() throws Exception
+    {
+        ConsoleCapture.uninstall();
+        PrintStream original = System.out;
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(console, true));
+        try
+        {
+            // Another deployment of the service, with its own copy of the class, installed its router first.
+            URL classes = ConsoleCapture.class.getProtectionDomain().getCodeSource().getLocation();
+            ClassLoader other = new URLClassLoader(new URL[] { classes }, ClassLoader.getSystemClassLoader().getParent());
+            Method install = other.loadClass(ConsoleCapture.class.getName()).getDeclaredMethod("install");
+            install.setAccessible(true);
+            install.invoke(null);
+            assertNotSame(ConsoleCapture.Router.class, System.out.getClass());
+
+            PrintStream foreign = System.out;
+            Method getConsole = foreign.getClass().getMethod("getConsole");
+            getConsole.setAccessible(true);
+            ConsoleCapture.install();
+            assertSame("The router of the other deployment was kept",
+                    getConsole.invoke(foreign), ((ConsoleCapture.Router) System.out).getConsole());
+
+            System.out.print("console");
+            assertEquals("console", console.toString());
+        }
+        finally
+        {
+            ConsoleCapture.uninstall();
+            System.setOut(original);
+        }
+    }
+}
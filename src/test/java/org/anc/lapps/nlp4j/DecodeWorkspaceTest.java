@@ -0,0 +1,145 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class DecodeWorkspaceTest
+{
+    private static final List<DecodeRequest.Column> COLUMNS = Arrays.asList(
+            new DecodeRequest.Column(1, "form"),
+            new DecodeRequest.Column(2, "lemma"));
+
+    @Test
+    public void testBuffersReused()
+    {
+        DecodeWorkspace workspace = new DecodeWorkspace(1000);
+        StringBuilder output = workspace.output(10);
+        output.append("first");
+        assertEquals("first", workspace.finish(output));
+
+        StringBuilder again = workspace.output(10);
+        assertSame("The output builder was not reused", output, again);
+        assertEquals("The output builder was not reset", 0, again.length());
+
+        StringBuilder config = workspace.config().append("<configuration/>");
+        assertNotSame(output, config);
+        assertEquals("<configuration/>", workspace.finish(config));
+        assertSame(config, workspace.config());
+
+        workspace.console().write('x');
+        assertEquals("The console buffer was not reset", 0, workspace.console().size());
+        assertSame(DecodeWorkspace.get(), DecodeWorkspace.get());
+    }
+
+    @Test
+    public void testCapacityCapped()
+    {
+        DecodeWorkspace workspace = new DecodeWorkspace(1000);
+        StringBuilder output = workspace.output(10);
+        for (int i = 0; i < 500; i++)
+        {
+            output.append("large");
+        }
+        workspace.finish(output);
+        assertNotSame("A builder over the limit was kept", output, workspace.output(10));
+
+        StringBuilder small = workspace.output(5000);
+        assertTrue("The expected size was not capped", small.capacity() < 5000);
+    }
+
+    @Test
+    public void testReaderReused()
+    {
+        DecodeWorkspace workspace = new DecodeWorkspace(1000);
+        TSVSliceReader reader = workspace.reader(COLUMNS);
+        reader.open("1\tDogs\tdog\n");
+        assertEquals("dog", reader.next()[1].getLemma());
+
+        assertSame(reader, workspace.reader(Collections.<DecodeRequest.Column>emptyList()));
+        reader.open("Cats\tcat\n");
+        NLPNode[] nodes = reader.next();
+        assertEquals("The columns were not reset", "Cats", nodes[1].getWordForm());
+        assertNull(nodes[1].getLemma());
+    }
+
+    @Test
+    public void testAllocationReduced()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+        {
+            text.append(i % 10 + 1).append("\tword\tlemma\n");
+            if (i % 10 == 9)
+            {
+                text.append('\n');
+            }
+        }
+        String input = text.toString();
+        DecodeWorkspace workspace = new DecodeWorkspace(1 << 20);
+
+        // Warm up both ways first, so that neither is measured while being compiled.
+        for (int i = 0; i < 200; i++)
+        {
+            decodeFresh(input);
+            decodePooled(workspace, input);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 200; i++)
+        {
+            decodeFresh(input);
+        }
+        long fresh = allocations.getThreadAllocatedBytes(thread) - start;
+
+        start = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 200; i++)
+        {
+            decodePooled(workspace, input);
+        }
+        long pooled = allocations.getThreadAllocatedBytes(thread) - start;
+
+        assertTrue("Allocated " + pooled + " bytes with the workspace, " + fresh + " without", pooled < fresh);
+    }
+
+    private static String decodeFresh(String input)
+    {
+        TSVSliceReader reader = new TSVSliceReader(COLUMNS);
+        StringBuilder output = new StringBuilder(input.length() * 2);
+        read(reader, output, input);
+        return output.toString();
+    }
+
+    private static String decodePooled(DecodeWorkspace workspace, String input)
+    {
+        TSVSliceReader reader = workspace.reader(COLUMNS);
+        StringBuilder output = workspace.output(input.length() * 2);
+        read(reader, output, input);
+        return workspace.finish(output);
+    }
+
+    private static void read(TSVSliceReader reader, StringBuilder output, String input)
+    {
+        reader.open(input);
+        for (NLPNode[] nodes = reader.next(); nodes != null; nodes = reader.next())
+        {
+            output.append(nodes[1].getWordForm()).append("\r\n\r\n");
+        }
+    }
+}
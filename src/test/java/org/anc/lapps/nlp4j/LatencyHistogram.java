@@ -0,0 +1,109 @@
+package org.anc.lapps.nlp4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of logarithmic width, so that runs of any length take the
+ * same memory and the percentiles are read without keeping or sorting the samples.
+ * <p>
+ * Every power of two is split into 32 buckets, which keeps each percentile within about 3%
+ * of the exact value. Latencies are recorded in microseconds, and recording is lock free so
+ * that all the load threads can share a histogram.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** This method records a latency.
+     *
+     * @param micros The latency, in microseconds
+     */
+    public void record(long micros)
+    {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    public long getCount() { return total.get(); }
+
+    public long getMax() { return max.get(); }
+
+    /** This method finds the latency below which the given fraction of the recorded latencies fall.
+     *
+     * @param fraction The fraction, for instance 0.99 for the 99th percentile
+     * @return The highest latency of the bucket holding the percentile, in microseconds,
+     *         or 0 if nothing was recorded.
+     */
+    public long percentile(double fraction)
+    {
+        long count = total.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** This method clears the histogram.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+        {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    /** This method finds the bucket of a value: the position of its highest bit, and the
+     * next {@value #SUB_BITS} bits below it. Values below {@value #SUB_BUCKETS} have a bucket
+     * of their own.
+     */
+    private static int index(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,476 @@
+package org.anc.lapps.nlp4j;
+
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a steady stream of concurrent requests to the service, for as long as it is told to,
+ * and reports how it holds up: throughput, latency percentiles, heap growth, temporary file
+ * growth, garbage collection time and the memory allocated per request. Short runs show
+ * contention, and runs of several hours show leaks.
+ * <p>
+ * Each request is a document cut from the sample text, with a size drawn from a weighted list
+ * of sizes, and the parameters of one of a list of parameter mixes. The requests are sent to a
+ * service in the same JVM, or to a deployed service when a URL is given.
+ * <p>
+ * The harness is not run by the unit tests. To run it, compile the tests and start this class
+ * with the test classpath, setting any of the following system properties:
+ * <ul>
+ *     <li>{@value #URL_PROPERTY}: the URL of a deployed service. By default the service is
+ *     created in the same JVM.</li>
+ *     <li>{@value #THREADS_PROPERTY}: the number of concurrent clients (default 4).</li>
+ *     <li>{@value #DURATION_PROPERTY}: the length of the run in seconds, after the warm-up (default 60).</li>
+ *     <li>{@value #WARMUP_PROPERTY}: the length of the warm-up in seconds, which is not measured (default 10).</li>
+ *     <li>{@value #REPORT_PROPERTY}: the time between reports in seconds (default 10).</li>
+ *     <li>{@value #SIZES_PROPERTY}: the document sizes in characters with their weights,
+ *     for instance "200:50,2000:40,20000:10".</li>
+ *     <li>{@value #MIX_PROPERTY}: the parameter mixes separated by "|", each a list of
+ *     parameters separated by ";", for instance "pos=yes;ner=yes|format=line;dep=yes".</li>
+ *     <li>{@value #TEXT_PROPERTY}: the file the documents are cut from.</li>
+ * </ul>
+ * The heap growth, garbage collection time and allocations are those of the JVM running the
+ * harness, and the temporary files are counted in its temporary directory, so they describe
+ * the service only when it runs in the same JVM or on the same machine. The allocations are
+ * only measured on JVMs that can count the bytes allocated by a thread.
+ *
+ * @author Alexandru Mahmoud
+ */
+public class LoadHarness
+{
+    public static final String URL_PROPERTY = "nlp4j.load.url";
+    public static final String THREADS_PROPERTY = "nlp4j.load.threads";
+    public static final String DURATION_PROPERTY = "nlp4j.load.duration";
+    public static final String WARMUP_PROPERTY = "nlp4j.load.warmup";
+    public static final String REPORT_PROPERTY = "nlp4j.load.report";
+    public static final String SIZES_PROPERTY = "nlp4j.load.sizes";
+    public static final String MIX_PROPERTY = "nlp4j.load.mix";
+    public static final String TEXT_PROPERTY = "nlp4j.load.text";
+
+    private static final String DEFAULT_SIZES = "200:50,2000:40,20000:10";
+    private static final String DEFAULT_MIX = "pos=yes;ner=yes"
+            + "|ambiguity=simplified-lowercase;clusters=brown-simplified-lc;pos=yes;ner=yes;dep=yes"
+            + "|format=line;pos=yes;dep=yes"
+            + "|pos=yes;dep=yes;pipeline=yes";
+    private static final String DEFAULT_TEXT = "src/test/resources/text-samples/nlp4j.txt";
+
+    /**
+     * The prefix of the temporary directories created by the service for its input files.
+     */
+    private static final String TEMP_PREFIX = "input";
+
+    private final Endpoint endpoint;
+    private final int threads;
+    private final int[] sizes;
+    private final int[] weights;
+    private final List<Map<String,String>> mixes;
+    private final String text;
+
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong intervalErrors = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong intervalAllocated = new AtomicLong();
+    private volatile String lastError;
+    private volatile boolean recording;
+
+    /**
+     * @param endpoint The service the requests are sent to
+     * @param threads The number of concurrent clients
+     * @param sizes The document sizes with their weights, as "size:weight" pairs separated by commas
+     * @param mix The parameter mixes, separated by "|", each a list of "name=value" pairs separated by ";"
+     * @param text The text the documents are cut from
+     */
+    public LoadHarness(Endpoint endpoint, int threads, String sizes, String mix, String text)
+    {
+        if (text.isEmpty())
+        {
+            throw new IllegalArgumentException("The sample text is empty.");
+        }
+        this.endpoint = endpoint;
+        this.threads = threads;
+        this.text = text;
+
+        String[] pairs = sizes.split(",");
+        this.sizes = new int[pairs.length];
+        this.weights = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++)
+        {
+            String[] pair = pairs[i].trim().split(":");
+            this.sizes[i] = Integer.parseInt(pair[0].trim());
+            this.weights[i] = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+        }
+
+        this.mixes = new ArrayList<>();
+        for (String parameters : mix.split("\\|"))
+        {
+            Map<String,String> parameterMap = new LinkedHashMap<>();
+            for (String parameter : parameters.split(";"))
+            {
+                int equals = parameter.indexOf('=');
+                if (equals > 0)
+                {
+                    parameterMap.put(parameter.substring(0, equals).trim(), parameter.substring(equals + 1).trim());
+                }
+            }
+            mixes.add(parameterMap);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String url = System.getProperty(URL_PROPERTY);
+        Endpoint endpoint = url == null
+                ? new LocalEndpoint(new NLP4JCustomDecode())
+                : new HttpEndpoint(new URL(url), 600000);
+        String text = new String(Files.readAllBytes(Paths.get(System.getProperty(TEXT_PROPERTY, DEFAULT_TEXT))),
+                StandardCharsets.UTF_8);
+
+        LoadHarness harness = new LoadHarness(endpoint,
+                Integer.getInteger(THREADS_PROPERTY, 4),
+                System.getProperty(SIZES_PROPERTY, DEFAULT_SIZES),
+                System.getProperty(MIX_PROPERTY, DEFAULT_MIX),
+                text);
+        Report report = harness.run(Long.getLong(WARMUP_PROPERTY, 10) * 1000,
+                Long.getLong(DURATION_PROPERTY, 60) * 1000,
+                Long.getLong(REPORT_PROPERTY, 10) * 1000,
+                System.out);
+        System.exit(report.errors == 0 ? 0 : 1);
+    }
+
+    /** This method runs the load, printing a report of each interval and of the whole run.
+     *
+     * @param warmup The time, in milliseconds, requests are sent before measuring starts
+     * @param duration The time, in milliseconds, requests are measured
+     * @param reportInterval The time, in milliseconds, between reports
+     * @param out The stream the reports are printed to
+     * @return The report of the whole run.
+     */
+    public Report run(long warmup, long duration, long reportInterval, PrintStream out) throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        long measureStart = start + warmup;
+        long end = measureStart + duration;
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+        {
+            long seed = i;
+            Thread client = new Thread(() -> sendUntil(end, new Random(seed)), "nlp4j-load-" + i);
+            client.setDaemon(true);
+            clients.add(client);
+            client.start();
+        }
+
+        sleepUntil(measureStart);
+        Snapshot baseline = Snapshot.take(true);
+        recording = true;
+        out.println("Warm-up done. Heap after GC: " + mb(baseline.heap) + " MB, temporary files: " + baseline.tempFiles);
+
+        Snapshot previous = baseline;
+        long intervalStart = System.currentTimeMillis();
+        while (intervalStart < end)
+        {
+            sleepUntil(Math.min(end, intervalStart + reportInterval));
+            long now = System.currentTimeMillis();
+            Snapshot current = Snapshot.take(false);
+            Report report = new Report(interval, intervalErrors.getAndSet(0), intervalAllocated.getAndSet(0), now - intervalStart,
+                    baseline, previous, current);
+            interval.reset();
+            out.println(report.format("interval"));
+            previous = current;
+            intervalStart = now;
+        }
+
+        for (Thread client : clients)
+        {
+            client.join();
+        }
+        recording = false;
+
+        Report report = new Report(total, errors.get(), allocated.get(), duration, baseline, baseline, Snapshot.take(true));
+        out.println(report.format("total"));
+        if (lastError != null)
+        {
+            out.println("Last error: " + lastError);
+        }
+        return report;
+    }
+
+    /** This method sends requests one after the other until the end of the run.
+     */
+    private void sendUntil(long end, Random random)
+    {
+        while (System.currentTimeMillis() < end)
+        {
+            String request = makeRequest(random);
+            long start = System.nanoTime();
+            // Only the allocations of the service are counted, not those of the harness.
+            long allocatedBefore = allocatedBytes();
+            long allocatedAfter = allocatedBefore;
+            long finished = 0;
+            boolean success = false;
+            try
+            {
+                String response = endpoint.execute(request);
+                finished = System.nanoTime();
+                allocatedAfter = allocatedBytes();
+                Data<Object> data = Serializer.parse(response, Data.class);
+                success = Discriminators.Uri.LAPPS.equals(data.getDiscriminator());
+                if (!success)
+                {
+                    lastError = String.valueOf(data.getPayload());
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                lastError = e.toString();
+            }
+            long micros = ((finished == 0 ? System.nanoTime() : finished) - start) / 1000;
+            long bytes = allocatedAfter - allocatedBefore;
+
+            if (recording)
+            {
+                total.record(micros);
+                interval.record(micros);
+                allocated.addAndGet(bytes);
+                intervalAllocated.addAndGet(bytes);
+                if (!success)
+                {
+                    errors.incrementAndGet();
+                    intervalErrors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** This method creates a request with a document of a random size, cut from a random
+     * position of the sample text, and the parameters of a random mix.
+     */
+    String makeRequest(Random random)
+    {
+        int size = pickSize(random);
+        StringBuilder document = new StringBuilder(size);
+        int position = random.nextInt(text.length());
+        while (document.length() < size)
+        {
+            int length = Math.min(size - document.length(), text.length() - position);
+            document.append(text, position, position + length);
+            position = 0;
+        }
+
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", document.toString());
+        Data<String> data = new Data<>(Discriminators.Uri.GET, Serializer.toJson(payload));
+        for (Map.Entry<String,String> parameter : mixes.get(random.nextInt(mixes.size())).entrySet())
+        {
+            data.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        return data.asJson();
+    }
+
+    /** This method gives the bytes allocated so far by the current thread.
+     *
+     * @return The number of bytes, or 0 if the JVM does not count them.
+     */
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return Math.max(0, ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()));
+        }
+        return 0;
+    }
+
+    private int pickSize(Random random)
+    {
+        int sum = 0;
+        for (int weight : weights)
+        {
+            sum += weight;
+        }
+        int pick = random.nextInt(sum);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            pick -= weights[i];
+            if (pick < 0)
+            {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException
+    {
+        long remaining = time - System.currentTimeMillis();
+        if (remaining > 0)
+        {
+            Thread.sleep(remaining);
+        }
+    }
+
+    private static long mb(long bytes)
+    {
+        return bytes / (1024 * 1024);
+    }
+
+    /**
+     * The state of the JVM at a point of the run.
+     */
+    static class Snapshot
+    {
+        /**
+         * The heap in use after the last garbage collection, which grows only with the
+         * memory that is really kept.
+         */
+        final long heap;
+        final long gcTime;
+        final long gcCount;
+        final int tempFiles;
+
+        private Snapshot(long heap, long gcTime, long gcCount, int tempFiles)
+        {
+            this.heap = heap;
+            this.gcTime = gcTime;
+            this.gcCount = gcCount;
+            this.tempFiles = tempFiles;
+        }
+
+        /** This method measures the JVM.
+         *
+         * @param collect Whether to run a garbage collection first, so that the heap is measured
+         *                right after one
+         */
+        static Snapshot take(boolean collect)
+        {
+            if (collect)
+            {
+                System.gc();
+            }
+
+            long heap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (pool.getType() == MemoryType.HEAP && usage != null)
+                {
+                    heap += usage.getUsed();
+                }
+            }
+
+            long gcTime = 0;
+            long gcCount = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                gcTime += Math.max(0, collector.getCollectionTime());
+                gcCount += Math.max(0, collector.getCollectionCount());
+            }
+
+            return new Snapshot(heap, gcTime, gcCount, countTempFiles());
+        }
+
+        /** This method counts the files left in the temporary directories of the service.
+         */
+        private static int countTempFiles()
+        {
+            File[] entries = new File(System.getProperty("java.io.tmpdir")).listFiles();
+            if (entries == null)
+            {
+                return 0;
+            }
+            int count = 0;
+            for (File entry : entries)
+            {
+                if (entry.getName().startsWith(TEMP_PREFIX))
+                {
+                    File[] files = entry.listFiles();
+                    count += files == null ? 1 : files.length + 1;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * The measurements of an interval, or of the whole run.
+     */
+    public static class Report
+    {
+        public final long requests;
+        public final long errors;
+        public final double throughput;
+        public final long p50;
+        public final long p99;
+        public final long p999;
+        public final long max;
+
+        /**
+         * The growth since the end of the warm-up, in bytes and files.
+         */
+        public final long heapGrowth;
+        public final int tempFileGrowth;
+
+        /**
+         * The garbage collection time and count during the interval.
+         */
+        public final long gcTime;
+        public final long gcCount;
+
+        /**
+         * The average number of bytes allocated by the clients per request, including the
+         * allocations of a service in the same JVM.
+         */
+        public final long allocatedPerRequest;
+
+        Report(LatencyHistogram histogram, long errors, long allocated, long elapsed, Snapshot baseline, Snapshot previous, Snapshot current)
+        {
+            this.requests = histogram.getCount();
+            this.errors = errors;
+            this.throughput = elapsed > 0 ? requests * 1000.0 / elapsed : 0;
+            this.p50 = histogram.percentile(0.50);
+            this.p99 = histogram.percentile(0.99);
+            this.p999 = histogram.percentile(0.999);
+            this.max = histogram.getMax();
+            this.heapGrowth = current.heap - baseline.heap;
+            this.tempFileGrowth = current.tempFiles - baseline.tempFiles;
+            this.gcTime = current.gcTime - previous.gcTime;
+            this.gcCount = current.gcCount - previous.gcCount;
+            this.allocatedPerRequest = requests > 0 ? allocated / requests : 0;
+        }
+
+        String format(String label)
+        {
+            return String.format("[%s] requests=%d errors=%d throughput=%.1f/s "
+                            + "latency p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms "
+                            + "heap growth=%dMB temp files growth=%d gc=%dms in %d collections "
+                            + "allocated=%dKB/request",
+                    label, requests, errors, throughput,
+                    p50 / 1000.0, p99 / 1000.0, p999 / 1000.0, max / 1000.0,
+                    mb(heapGrowth), tempFileGrowth, gcTime, gcCount, allocatedPerRequest / 1024);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.anc.lapps.nlp4j;
+
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class LoadHarnessTest
+{
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++)
+        {
+            histogram.record(i * 100);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertWithin(500000, histogram.percentile(0.50));
+        assertWithin(990000, histogram.percentile(0.99));
+        assertWithin(999000, histogram.percentile(0.999));
+
+        histogram.reset();
+        assertEquals(0, histogram.percentile(0.99));
+        histogram.record(7);
+        assertEquals(7, histogram.percentile(0.5));
+    }
+
+    @Test
+    public void testRequests()
+    {
+        LoadHarness harness = new LoadHarness(input -> input, 1, "10:1,1000:0", "pos=yes;format=line|tsv-fields=form,lemma",
+                "abc");
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++)
+        {
+            Data<String> data = Serializer.parse(harness.makeRequest(random), Data.class);
+            Map<String,String> payload = Serializer.parse(data.getPayload(), HashMap.class);
+            assertEquals("The document has the wrong size", 10, payload.get("input").length());
+            assertTrue(payload.get("input"), "abcabcabcabc".contains(payload.get("input")));
+            if (data.getParameter("pos") != null)
+            {
+                assertEquals("line", data.getParameter("format"));
+            }
+            else
+            {
+                assertEquals("form,lemma", data.getParameter("tsv-fields"));
+            }
+        }
+    }
+
+    @Test
+    public void testRun() throws InterruptedException
+    {
+        AtomicInteger calls = new AtomicInteger();
+        Endpoint endpoint = input -> {
+            // Every tenth request fails.
+            String discriminator = calls.incrementAndGet() % 10 == 0 ? Discriminators.Uri.ERROR : Discriminators.Uri.LAPPS;
+            return new Data<>(discriminator, "{}").asJson();
+        };
+        LoadHarness harness = new LoadHarness(endpoint, 2, "100", "pos=yes", "Some text. ");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LoadHarness.Report report = harness.run(100, 500, 200, new PrintStream(out));
+
+        assertTrue("No requests were measured", report.requests > 0);
+        assertTrue("The errors were not counted", report.errors > 0);
+        assertTrue(report.errors < report.requests);
+        assertTrue(report.throughput > 0);
+        assertTrue(report.p50 <= report.p99);
+        assertTrue(report.p99 <= report.p999);
+        assertTrue(report.p999 <= report.max);
+
+        String printed = out.toString();
+        assertTrue(printed, printed.contains("[interval]"));
+        assertTrue(printed, printed.contains("[total]"));
+    }
+
+    /**
+     * Checks a percentile against its exact value, within the precision of the histogram.
+     */
+    private static void assertWithin(long expected, long actual)
+    {
+        assertTrue("Expected about " + expected + " but was " + actual, Math.abs(expected - actual) <= expected * 0.04);
+    }
+}
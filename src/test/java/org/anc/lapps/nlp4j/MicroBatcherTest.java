@@ -0,0 +1,202 @@
+package org.anc.lapps.nlp4j;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class MicroBatcherTest
+{
+    /**
+     * The sizes of the batches decoded by the echo handler.
+     */
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+    /**
+     * Holds the first batch in the echo handler until it is opened, if it is set.
+     */
+    private volatile CountDownLatch gate;
+
+    /**
+     * Opened when the first batch reaches the echo handler.
+     */
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    @Test
+    public void testConcurrentRequestsBatched() throws Exception
+    {
+        MicroBatcher batcher = new MicroBatcher(this::echo, 2000, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(9);
+        CountDownLatch start = new CountDownLatch(1);
+        try
+        {
+            // A request held in the handler keeps the configuration in flight, so the
+            // requests arriving meanwhile are batched.
+            gate = new CountDownLatch(1);
+            Future<Map<String,String>> first = executor.submit(() ->
+                    batcher.submit("config", new DecodeRequest(), payload("first")));
+            entered.await(10, TimeUnit.SECONDS);
+
+            List<Future<Map<String,String>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                String text = "text " + i;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return batcher.submit("config", new DecodeRequest(), payload(text));
+                }));
+            }
+            start.countDown();
+            Thread.sleep(200);
+            gate.countDown();
+
+            assertEquals("FIRST", first.get(10, TimeUnit.SECONDS).get("output-file-1"));
+            for (int i = 0; i < 8; i++)
+            {
+                assertEquals("A result went to the wrong request", "TEXT " + i,
+                        results.get(i).get(10, TimeUnit.SECONDS).get("output-file-1"));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals("The requests were not batched: " + batches, 3, batches.size());
+        for (int size : batches)
+        {
+            assertTrue("A batch was too large: " + batches, size <= 4);
+        }
+    }
+
+    @Test
+    public void testLoneRequestNotDelayed() throws AdmissionException
+    {
+        MicroBatcher batcher = new MicroBatcher(this::echo, 60000, 32);
+        long start = System.currentTimeMillis();
+        assertEquals("TEXT", batcher.submit("config", new DecodeRequest(), payload("text")).get("output-file-1"));
+        assertTrue("A request on an idle service waited for the window", System.currentTimeMillis() - start < 30000);
+        assertEquals(Collections.singletonList(1), batches);
+    }
+
+    @Test
+    public void testSequentialRequestsNotDelayed() throws Exception
+    {
+        MicroBatcher batcher = new MicroBatcher(this::echo, 60000, 32);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            // Requests of another configuration in flight do not hold back this one.
+            gate = new CountDownLatch(1);
+            Future<Map<String,String>> other = executor.submit(() ->
+                    batcher.submit("other", new DecodeRequest(), payload("other")));
+            entered.await(10, TimeUnit.SECONDS);
+
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 5; i++)
+            {
+                assertEquals("TEXT " + i, batcher.submit("config", new DecodeRequest(), payload("text " + i))
+                        .get("output-file-1"));
+            }
+            assertTrue("A request sent after the previous one was done waited for the window",
+                    System.currentTimeMillis() - start < 30000);
+
+            gate.countDown();
+            assertEquals("OTHER", other.get(10, TimeUnit.SECONDS).get("output-file-1"));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailures()
+    {
+        MicroBatcher batcher = new MicroBatcher((configuration, batch) -> {
+            if ("bad".equals(configuration))
+            {
+                throw new AdmissionException("Does not fit.");
+            }
+            for (MicroBatcher.Job job : batch)
+            {
+                job.setError(new IllegalArgumentException("Bad input"));
+            }
+        }, 10, 4);
+
+        try
+        {
+            batcher.submit("bad", new DecodeRequest(), payload("text"));
+            fail("The failure of the batch was not reported.");
+        }
+        catch (AdmissionException e)
+        {
+            assertEquals("Does not fit.", e.getMessage());
+        }
+
+        try
+        {
+            batcher.submit("config", new DecodeRequest(), payload("text"));
+            fail("The failure of the request was not reported.");
+        }
+        catch (AdmissionException e)
+        {
+            fail(e.getMessage());
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertEquals("Bad input", e.getMessage());
+        }
+    }
+
+    /**
+     * A handler that returns the input of every job in upper case, holding the first batch
+     * until the gate is opened.
+     */
+    private void echo(String configuration, List<MicroBatcher.Job> batch)
+    {
+        batches.add(batch.size());
+        if (entered.getCount() > 0)
+        {
+            entered.countDown();
+            CountDownLatch held = gate;
+            if (held != null)
+            {
+                try
+                {
+                    held.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        for (MicroBatcher.Job job : batch)
+        {
+            Map<String,String> output = new HashMap<>();
+            output.put("output-file-1", job.payload.get("input").toUpperCase());
+            job.setOutput(output);
+        }
+    }
+
+    private static Map<String,String> payload(String text)
+    {
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", text);
+        return payload;
+    }
+}
@@ -0,0 +1,273 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class ModelRegistryTest
+{
+    private static final long MB = 1024L * 1024L;
+
+    private File directory;
+    private TestGovernor governor;
+    private ModelRegistry registry;
+
+    @Before
+    public void setup() throws IOException
+    {
+        directory = Files.createTempDirectory("registry").toFile();
+        governor = new TestGovernor();
+        registry = new ModelRegistry(directory, governor);
+    }
+
+    @After
+    public void cleanup()
+    {
+        delete(directory);
+    }
+
+    @Test
+    public void testVersionOrder()
+    {
+        List<String> names = Arrays.asList("1.10", "1.2", "1.9", "2", "1.02.1");
+        Collections.sort(names, ModelRegistry.VERSION_ORDER);
+        assertEquals(Arrays.asList("1.2", "1.02.1", "1.9", "1.10", "2"), names);
+    }
+
+    @Test
+    public void testCurrentIsNewest() throws IOException
+    {
+        assertFalse(registry.refresh());
+        assertNull(registry.getCurrent());
+
+        addVersion("1.9");
+        addVersion("1.10");
+        new File(directory, "notes").mkdir();
+        assertTrue(registry.refresh());
+        assertEquals("1.10", registry.getCurrent().getName());
+        assertEquals(Arrays.asList("1.9", "1.10"), registry.getVersions());
+
+        assertSame(registry.getCurrent(), registry.resolve(null));
+        assertEquals("1.9", registry.resolve("1.9").getName());
+        assertEquals(new File(directory, "1.9").getPath() + "/models/", registry.resolve("1.9").getModelsPath());
+        assertNull(registry.resolve("3.0"));
+        assertFalse("The version changed without a new one", registry.refresh());
+    }
+
+    @Test
+    public void testHotSwap() throws IOException, AdmissionException
+    {
+        ModelVersion first = addVersion("1.0");
+        registry.refresh();
+        Pipeline old = load(first);
+        Pipeline idle = governor.acquire(configuration(first) + "<lexica/>", resources(first));
+        governor.decoder(idle);
+        governor.release(idle);
+
+        ModelVersion second = addVersion("1.1");
+        assertTrue(registry.refresh());
+        assertEquals("1.1", registry.getCurrent().getName());
+
+        // Every configuration of the old version was loaded before the switch.
+        assertEquals(2, governor.loaded(second.getPath()).size());
+        assertTrue(governor.loaded.contains(configuration(second)));
+
+        // The idle pipeline of the old version is gone, the one in use stays until it is released.
+        assertEquals(Collections.singletonList(old), governor.loaded(first.getPath()));
+        governor.release(old);
+        assertTrue(governor.loaded(first.getPath()).isEmpty());
+
+        // A request pinning the old version loads it again, and it is kept once released.
+        ModelVersion resolved = registry.resolve("1.0");
+        Pipeline pinned = governor.acquire(configuration(resolved), resources(resolved), true);
+        governor.decoder(pinned);
+        assertNotSame(old, pinned);
+        governor.release(pinned);
+        assertEquals(Collections.singletonList(pinned), governor.loaded(first.getPath()));
+    }
+
+    @Test
+    public void testLateRequestAfterSwitch() throws IOException, AdmissionException
+    {
+        ModelVersion first = addVersion("1.0");
+        registry.refresh();
+        governor.release(load(first));
+        addVersion("1.1");
+        assertTrue(registry.refresh());
+
+        // A request that resolved the old version just before the switch does not bring it back for good.
+        Pipeline late = load(first);
+        governor.release(late);
+        assertTrue("The old version was loaded again after the switch", governor.loaded(first.getPath()).isEmpty());
+    }
+
+    @Test
+    public void testBusyVersionRetried() throws IOException, AdmissionException
+    {
+        ModelVersion first = addVersion("1.0");
+        registry.refresh();
+        governor.release(load(first));
+
+        addVersion("1.1");
+        governor.full = "1.1";
+        assertFalse(registry.refresh());
+        assertEquals("1.0", registry.getCurrent().getName());
+        assertNotNull("A version that did not fit yet was left out", registry.resolve("1.1"));
+
+        governor.full = null;
+        assertTrue("A version that did not fit was not tried again", registry.refresh());
+        assertEquals("1.1", registry.getCurrent().getName());
+    }
+
+    @Test
+    public void testSwitchBack() throws IOException, AdmissionException
+    {
+        ModelVersion first = addVersion("1.0");
+        registry.refresh();
+        governor.release(load(first));
+        ModelVersion second = addVersion("1.1");
+        assertTrue(registry.refresh());
+
+        delete(new File(second.getPath()));
+        assertTrue(registry.refresh());
+        assertEquals("1.0", registry.getCurrent().getName());
+
+        // The version switched back to is in use again, so its pipelines are kept.
+        governor.release(load(first));
+        assertEquals(1, governor.loaded(first.getPath()).size());
+    }
+
+    @Test
+    public void testFailedVersionSkipped() throws IOException, AdmissionException
+    {
+        ModelVersion first = addVersion("1.0");
+        registry.refresh();
+        governor.release(load(first));
+
+        addVersion("1.1");
+        governor.broken = "1.1";
+        assertFalse(registry.refresh());
+        assertEquals("Switched to a version that failed to load", "1.0", registry.getCurrent().getName());
+        assertNull(registry.resolve("1.1"));
+        assertEquals(1, governor.loaded(first.getPath()).size());
+
+        // A fixed version is given a new name.
+        addVersion("1.2");
+        assertTrue(registry.refresh());
+        assertEquals("1.2", registry.getCurrent().getName());
+    }
+
+    @Test
+    public void testMissingFileSkipped() throws IOException, AdmissionException
+    {
+        ModelVersion first = addVersion("1.0");
+        registry.refresh();
+        governor.release(load(first));
+
+        ModelVersion second = addVersion("1.1");
+        new File(second.getModelsPath() + "en-pos.xz").delete();
+        assertFalse(registry.refresh());
+        assertEquals("1.0", registry.getCurrent().getName());
+    }
+
+    @Test
+    public void testRemovedVersion() throws IOException
+    {
+        addVersion("1.0");
+        ModelVersion second = addVersion("1.1");
+        registry.refresh();
+        delete(new File(second.getPath()));
+        assertTrue(registry.refresh());
+        assertEquals("1.0", registry.getCurrent().getName());
+    }
+
+    private ModelVersion addVersion(String name) throws IOException
+    {
+        File models = new File(new File(directory, name), "models");
+        models.mkdirs();
+        Files.write(new File(models, "en-pos.xz").toPath(), new byte[1024]);
+        return new ModelVersion(name, new File(directory, name).getPath() + "/");
+    }
+
+    private Pipeline load(ModelVersion version) throws AdmissionException
+    {
+        Pipeline pipeline = governor.acquire(configuration(version), resources(version));
+        governor.decoder(pipeline);
+        return pipeline;
+    }
+
+    private static String configuration(ModelVersion version)
+    {
+        return "<models><pos>" + version.getModelsPath() + "en-pos.xz</pos></models>";
+    }
+
+    private static List<String> resources(ModelVersion version)
+    {
+        return Collections.singletonList(version.getModelsPath() + "en-pos.xz");
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (File child : files)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Does not load any models, records the configurations it loads, fails to load the
+     * configurations of the broken version, and has no room for those of the full version.
+     */
+    private static class TestGovernor extends ResourceGovernor
+    {
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        volatile String broken;
+        volatile String full;
+
+        TestGovernor()
+        {
+            super(100 * MB, 0, 2);
+        }
+
+        @Override
+        public synchronized Pipeline acquire(String configuration, List<String> resources, boolean pinned)
+                throws AdmissionException
+        {
+            if (full != null && configuration.contains("/" + full + "/"))
+            {
+                throw new AdmissionException("The service is at its memory budget.");
+            }
+            return super.acquire(configuration, resources, pinned);
+        }
+
+        @Override
+        protected NLPDecoder load(String configuration)
+        {
+            if (broken != null && configuration.contains("/" + broken + "/"))
+            {
+                throw new IllegalStateException("Corrupt model");
+            }
+            loaded.add(configuration);
+            return new NLPDecoder();
+        }
+    }
+}
@@ -9,11 +9,13 @@ import org.lappsgrid.metadata.ServiceMetadata;
 import org.lappsgrid.serialization.Data;
 import org.lappsgrid.serialization.Serializer;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import static org.lappsgrid.discriminator.Discriminators.Uri;
 
 /**
@@ -94,6 +96,10 @@ public class NLP4JCustomDecodeTest
     {
         System.out.println("NLP4JCustomDecodeTest.testExecute");
 
+        // The models and lexica are not part of the repository, so the decoding can only be
+        // checked where they have been installed.
+        assumeTrue(new File("src/main/resources/models/en-ner.xz").exists());
+
         String inputTxt;
 
         try
@@ -118,7 +124,14 @@ public class NLP4JCustomDecodeTest
         data.setParameter("ner", true);
 
         String response = nlp4JCustomDecode.execute(data.asJson());
+        assertNotNull("No JSON returned from the service", response);
         System.out.println(response);
+
+        data = Serializer.parse(response, Data.class);
+        assertEquals(data.getPayload(), Uri.LAPPS, data.getDiscriminator());
+        Map<String,String> output = Serializer.parse(data.getPayload(), HashMap.class);
+        assertNotNull("No output file returned", output.get("output-file-1"));
+        assertFalse("The output file is empty", output.get("output-file-1").isEmpty());
     }
 
 }
@@ -0,0 +1,330 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.NLPComponent;
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+import edu.emory.mathcs.nlp.component.tokenizer.EnglishTokenizer;
+import edu.emory.mathcs.nlp.component.tokenizer.token.Token;
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class PipelinedDecoderTest
+{
+    private PipelinedDecoder pipeline;
+
+    @After
+    public void cleanup()
+    {
+        if (pipeline != null)
+        {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void testStagesInOrder()
+    {
+        pipeline = new PipelinedDecoder(4, 8);
+        NLPDecoder decoder = decoder(new Tag("a"), new Tag("b"), new Tag("c"));
+
+        List<NLPNode[]> sentences = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            sentences.add(sentence("word" + i));
+        }
+
+        List<NLPNode[]> results = pipeline.decode(decoder, sentences.iterator());
+        assertEquals(200, results.size());
+        for (int i = 0; i < 200; i++)
+        {
+            assertEquals("Sentences were reordered", "word" + i, results.get(i)[1].getWordForm());
+            assertEquals("Stages were skipped or reordered", "abc", results.get(i)[1].getPartOfSpeechTag());
+        }
+    }
+
+    @Test
+    public void testBoundedInFlight()
+    {
+        pipeline = new PipelinedDecoder(4, 3);
+        AtomicInteger read = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        NLPComponent<NLPNode> last = new Tag("b")
+        {
+            @Override
+            public void process(NLPNode[] nodes)
+            {
+                super.process(nodes);
+                done.incrementAndGet();
+            }
+        };
+
+        List<NLPNode[]> sentences = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            sentences.add(sentence("word" + i));
+        }
+        Iterator<NLPNode[]> source = sentences.iterator();
+        Iterator<NLPNode[]> counting = new Iterator<NLPNode[]>()
+        {
+            public boolean hasNext() { return source.hasNext(); }
+
+            public NLPNode[] next()
+            {
+                int inFlight = read.incrementAndGet() - done.get();
+                maxInFlight.accumulateAndGet(inFlight, Math::max);
+                return source.next();
+            }
+        };
+
+        assertEquals(50, pipeline.decode(decoder(new Tag("a"), last), counting).size());
+        // The sentence being read is not counted by the bound yet.
+        assertTrue("Too many sentences in flight: " + maxInFlight.get(), maxInFlight.get() <= 4);
+    }
+
+    @Test
+    public void testStageFailure()
+    {
+        pipeline = new PipelinedDecoder(2, 4);
+        NLPComponent<NLPNode> failing = new Tag("b")
+        {
+            @Override
+            public void process(NLPNode[] nodes)
+            {
+                if ("word7".equals(nodes[1].getWordForm()))
+                {
+                    throw new IllegalArgumentException("Bad sentence");
+                }
+                super.process(nodes);
+            }
+        };
+
+        List<NLPNode[]> sentences = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            sentences.add(sentence("word" + i));
+        }
+        try
+        {
+            pipeline.decode(decoder(new Tag("a"), failing), sentences.iterator());
+            fail("The failure of a stage was not reported.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertEquals("Bad sentence", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLineSentences()
+    {
+        NLPDecoder decoder = decoder();
+        decoder.setTokenizer(new EnglishTokenizer());
+        SentenceReader reader = new SentenceReader(decoder, NLPDecoder.FORMAT_LINE, null, "Hello world.\r\nBye.\n");
+
+        assertTrue(reader.hasNext());
+        NLPNode[] nodes = reader.next();
+        assertEquals(4, nodes.length);
+        assertEquals("Hello", nodes[1].getWordForm());
+        assertEquals(3, reader.next().length);
+        assertFalse("The final line break was read as a sentence", reader.hasNext());
+    }
+
+    @Test
+    public void testRawSentencesRead()
+    {
+        // Sentences end in the middle of lines, go on over line breaks, and end with quotes.
+        String text = "Dr. Smith went to Washington. He arrived on Monday\r\n"
+                + "morning, and left the same day! Did he\nreally?\n\n"
+                + "\"It was short,\" he said. \"Very short.\"\nThe   end\n";
+        AtomicInteger tokenized = new AtomicInteger();
+        NLPDecoder decoder = decoder();
+        decoder.setTokenizer(new EnglishTokenizer()
+        {
+            @Override
+            public List<Token> tokenize(String block)
+            {
+                tokenized.addAndGet(block.length());
+                return super.tokenize(block);
+            }
+        });
+
+        List<List<Token>> expected = new EnglishTokenizer().segmentize(text);
+        for (int blockSize : new int[] { 1, 16, 50, SentenceReader.BLOCK_SIZE })
+        {
+            tokenized.set(0);
+            SentenceReader reader = new SentenceReader(decoder, NLPDecoder.FORMAT_RAW, null, text, blockSize);
+            reader.next();
+            if (blockSize == 1)
+            {
+                assertTrue("The whole text was tokenized for the first sentence", tokenized.get() < text.length());
+            }
+
+            reader = new SentenceReader(decoder, NLPDecoder.FORMAT_RAW, null, text, blockSize);
+            for (List<Token> sentence : expected)
+            {
+                NLPNode[] nodes = reader.next();
+                assertEquals("Wrong sentence with blocks of " + blockSize, sentence.size() + 1, nodes.length);
+                for (int i = 0; i < sentence.size(); i++)
+                {
+                    assertEquals(sentence.get(i).getWordForm(), nodes[i + 1].getWordForm());
+                    assertEquals(sentence.get(i).getStartOffset(), nodes[i + 1].getStartOffset());
+                    assertEquals(sentence.get(i).getEndOffset(), nodes[i + 1].getEndOffset());
+                }
+            }
+            assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test
+    public void testRawWithoutSentenceBreaks()
+    {
+        // A long run of lines without any sentence-final punctuation is one sentence.
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+        {
+            builder.append("line number ").append(i).append(" goes on\n");
+        }
+        String text = builder.append("Then it ends. After that\n").toString();
+
+        AtomicInteger segmentized = new AtomicInteger();
+        NLPDecoder decoder = decoder();
+        decoder.setTokenizer(new EnglishTokenizer()
+        {
+            @Override
+            public <T extends Token> List<List<T>> segmentize(List<T> tokens)
+            {
+                segmentized.addAndGet(tokens.size());
+                return super.segmentize(tokens);
+            }
+        });
+
+        List<List<Token>> expected = new EnglishTokenizer().segmentize(text);
+        int tokens = 0;
+        for (List<Token> sentence : expected)
+        {
+            tokens += sentence.size();
+        }
+
+        SentenceReader reader = new SentenceReader(decoder, NLPDecoder.FORMAT_RAW, null, text, 16);
+        for (List<Token> sentence : expected)
+        {
+            NLPNode[] nodes = reader.next();
+            assertEquals(sentence.size() + 1, nodes.length);
+            assertEquals(sentence.get(sentence.size() - 1).getWordForm(), nodes[nodes.length - 1].getWordForm());
+            assertEquals(sentence.get(sentence.size() - 1).getEndOffset(), nodes[nodes.length - 1].getEndOffset());
+        }
+        assertFalse(reader.hasNext());
+        assertTrue("The held back sentence was split again for every block: " + segmentized.get() + " tokens split",
+                segmentized.get() < 4 * tokens);
+    }
+
+    @Test
+    public void testReadFailure() throws InterruptedException
+    {
+        pipeline = new PipelinedDecoder(2, 4);
+        AtomicInteger done = new AtomicInteger();
+        NLPComponent<NLPNode> counting = new Tag("a")
+        {
+            @Override
+            public void process(NLPNode[] nodes)
+            {
+                super.process(nodes);
+                done.incrementAndGet();
+            }
+        };
+        Iterator<NLPNode[]> sentences = new Iterator<NLPNode[]>()
+        {
+            int read;
+
+            public boolean hasNext() { return true; }
+
+            public NLPNode[] next()
+            {
+                if (read == 3)
+                {
+                    throw new InputFormatException("Invalid head on line 4 of the TSV input.");
+                }
+                return sentence("word" + read++);
+            }
+        };
+        try
+        {
+            pipeline.decode(decoder(counting), sentences);
+            fail("The failure to read a sentence was not reported.");
+        }
+        catch (InputFormatException e)
+        {
+            assertEquals("Invalid head on line 4 of the TSV input.", e.getMessage());
+        }
+
+        // The sentences in flight have left the pipeline, so no stage runs after the failure.
+        int finished = done.get();
+        Thread.sleep(50);
+        assertEquals("A stage ran after the failure was reported", finished, done.get());
+    }
+
+    @SafeVarargs
+    private static NLPDecoder decoder(NLPComponent<NLPNode>... components)
+    {
+        NLPDecoder decoder = new NLPDecoder();
+        decoder.setComponents(new ArrayList<>(Arrays.asList(components)));
+        return decoder;
+    }
+
+    private static NLPNode[] sentence(String word)
+    {
+        NLPNode node = new NLPNode();
+        node.setWordForm(word);
+        node.setPartOfSpeechTag("");
+        return new NLPNode[] { new NLPNode().toRoot(), node };
+    }
+
+    /**
+     * A stage that appends its tag to the part-of-speech of every node, sometimes giving way to
+     * other threads so that the sentences finish out of order.
+     */
+    private static class Tag implements NLPComponent<NLPNode>
+    {
+        private final String tag;
+
+        Tag(String tag)
+        {
+            this.tag = tag;
+        }
+
+        @Override
+        public void process(NLPNode[] nodes)
+        {
+            if (ThreadLocalRandom.current().nextInt(4) == 0)
+            {
+                Thread.yield();
+            }
+            for (int i = 1; i < nodes.length; i++)
+            {
+                nodes[i].setPartOfSpeechTag(nodes[i].getPartOfSpeechTag() + tag);
+            }
+        }
+
+        @Override
+        public void process(List<NLPNode[]> document)
+        {
+            for (NLPNode[] nodes : document)
+            {
+                process(nodes);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.anc.lapps.nlp4j;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class RequestValidatorTest
+{
+    private Data<String> data;
+
+    @Before
+    public void setup()
+    {
+        data = new Data<>(Discriminators.Uri.GET, "{}");
+    }
+
+    @Test
+    public void testDefaults() throws ValidationException
+    {
+        DecodeRequest request = RequestValidator.validate(data);
+        assertEquals("raw", request.getFormat());
+        assertTrue(request.getColumns().isEmpty());
+        assertTrue(request.getLexica().isEmpty());
+        assertFalse(request.isPos() || request.isNer() || request.isDep());
+        assertFalse(request.isPipelined());
+        assertTrue("The printed output is returned by default", request.isPrinted());
+    }
+
+    @Test
+    public void testOptions() throws ValidationException
+    {
+        data.setParameter("pipeline", "yes");
+        data.setParameter("printed", false);
+
+        DecodeRequest request = RequestValidator.validate(data);
+        assertTrue(request.isPipelined());
+        assertFalse(request.isPrinted());
+        assertEquals("format=raw pos=false ner=false dep=false pipelined=true", request.toString());
+
+        data.setParameter("printed", "maybe");
+        try
+        {
+            RequestValidator.validate(data);
+            fail("An invalid flag was accepted.");
+        }
+        catch (ValidationException e)
+        {
+            assertEquals("printed", e.getErrors().get(0).parameter);
+        }
+    }
+
+    @Test
+    public void testModelVersion() throws ValidationException
+    {
+        assertNull(RequestValidator.validate(data).getModelVersion());
+
+        data.setParameter("model-version", " 1.2 ");
+        assertEquals("1.2", RequestValidator.validate(data).getModelVersion());
+
+        data.setParameter("model-version", "");
+        try
+        {
+            RequestValidator.validate(data);
+            fail("An empty model version was accepted.");
+        }
+        catch (ValidationException e)
+        {
+            assertEquals("model-version", e.getErrors().get(0).parameter);
+        }
+    }
+
+    @Test
+    public void testValidRequest() throws ValidationException
+    {
+        data.setParameter("tsv-fields", "form, lemma,pos");
+        data.setParameter("tsv-indices", "1, 2,3");
+        data.setParameter("clusters", "brown-twit-lc");
+        data.setParameter("ambiguity", "simplified");
+        data.setParameter("pos", "yes");
+        data.setParameter("ner", true);
+        data.setParameter("dep", "no");
+        data.setParameter("format", "tsv");
+
+        DecodeRequest request = RequestValidator.validate(data);
+        assertEquals(3, request.getColumns().size());
+        assertEquals(2, request.getColumns().get(1).index);
+        assertEquals("lemma", request.getColumns().get(1).field);
+        assertEquals(Lexicon.AMBIGUITY_SIMPLIFIED, request.getLexica().get(0));
+        assertEquals(Lexicon.CLUSTERS_BROWN_TWIT_LC, request.getLexica().get(1));
+        assertTrue(request.isPos());
+        assertTrue(request.isNer());
+        assertFalse(request.isDep());
+        assertEquals("tsv", request.getFormat());
+    }
+
+    @Test
+    public void testAllErrorsReported()
+    {
+        data.setParameter("tsv-fields", "form,lemma");
+        data.setParameter("tsv-indices", "0");
+        data.setParameter("gazetteers", "unknown");
+        data.setParameter("pos", "maybe");
+        data.setParameter("format", "xml");
+        try
+        {
+            RequestValidator.validate(data);
+            fail("An invalid request was accepted.");
+        }
+        catch (ValidationException e)
+        {
+            assertEquals(4, e.getErrors().size());
+            assertEquals("tsv-indices", e.getErrors().get(0).parameter);
+            assertEquals("gazetteers", e.getErrors().get(1).parameter);
+            assertEquals("unknown", e.getErrors().get(1).value);
+            assertEquals("pos", e.getErrors().get(2).parameter);
+            assertEquals("format", e.getErrors().get(3).parameter);
+            assertTrue(e.getMessage().contains("Invalid field given for named entity gazetteers."));
+        }
+    }
+
+    @Test
+    public void testInvalidColumns()
+    {
+        data.setParameter("tsv-fields", "form,word");
+        data.setParameter("tsv-indices", "0,-1");
+        try
+        {
+            RequestValidator.validate(data);
+            fail("Invalid TSV columns were accepted.");
+        }
+        catch (ValidationException e)
+        {
+            assertEquals(1, e.getErrors().size());
+            assertEquals("Invalid TSV index.\r\nGiven: -1", e.getErrors().get(0).message);
+        }
+    }
+}
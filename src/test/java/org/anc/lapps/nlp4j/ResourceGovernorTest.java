@@ -0,0 +1,299 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.decode.NLPDecoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class ResourceGovernorTest
+{
+    private static final long MB = 1024L * 1024L;
+
+    private File model;
+    private List<String> resources;
+
+    @Before
+    public void setup() throws IOException
+    {
+        // A 1 MB file standing in for a model, estimated at 2 MB with an expansion of 2.
+        model = File.createTempFile("model", ".xz");
+        try (RandomAccessFile file = new RandomAccessFile(model, "rw"))
+        {
+            file.setLength(MB);
+        }
+        resources = Collections.singletonList(model.getPath());
+    }
+
+    @After
+    public void cleanup()
+    {
+        model.delete();
+    }
+
+    @Test
+    public void testRejectOverBudget()
+    {
+        ResourceGovernor governor = new TestGovernor(MB, 0);
+        try
+        {
+            governor.acquire("config", resources);
+            fail("A configuration larger than the budget was admitted.");
+        }
+        catch (AdmissionException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("exceeds the memory budget"));
+        }
+        assertEquals("Memory reserved for a rejected request", 0, governor.getReserved());
+    }
+
+    @Test
+    public void testSharedPipeline() throws AdmissionException
+    {
+        ResourceGovernor governor = new TestGovernor(10 * MB, 0);
+        Pipeline first = governor.acquire("config", resources);
+        Pipeline second = governor.acquire("config", resources);
+        assertSame("The same configuration was loaded twice", first, second);
+        assertSame(governor.decoder(first), governor.decoder(second));
+        assertEquals(1, governor.size());
+    }
+
+    @Test
+    public void testEvictIdle() throws AdmissionException
+    {
+        ResourceGovernor governor = new TestGovernor(5 * MB, 0);
+        Pipeline first = governor.acquire("first", resources);
+        governor.release(first);
+        Pipeline second = governor.acquire("second", resources);
+        governor.release(second);
+
+        // The idle pipelines take up 4 MB, so the least recently used one makes room.
+        governor.acquire("third", resources);
+        assertEquals(2, governor.size());
+        assertSame("The most recently used pipeline was evicted", second, governor.acquire("second", resources));
+    }
+
+    @Test
+    public void testTimeoutWhenInUse() throws AdmissionException
+    {
+        ResourceGovernor governor = new TestGovernor(3 * MB, 10);
+        governor.acquire("first", resources);
+        try
+        {
+            governor.acquire("second", resources);
+            fail("A pipeline in use was evicted.");
+        }
+        catch (AdmissionException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("try again later"));
+        }
+    }
+
+    @Test
+    public void testRetire() throws AdmissionException
+    {
+        ResourceGovernor governor = new TestGovernor(10 * MB, 0);
+        String directory = model.getParent() + "/";
+        Pipeline idle = governor.acquire("idle", resources);
+        governor.decoder(idle);
+        governor.release(idle);
+        Pipeline busy = governor.acquire("busy", resources);
+        governor.decoder(busy);
+        assertEquals(2, governor.loaded(directory).size());
+
+        assertEquals(2, governor.retire(directory));
+        assertEquals("An idle pipeline was kept", 1, governor.size());
+        assertSame("A pipeline in use was removed", busy, governor.acquire("busy", resources));
+        governor.release(busy);
+        governor.release(busy);
+        assertEquals("A retired pipeline was kept after its last release", 0, governor.size());
+        assertEquals(0, governor.getReserved());
+        assertNotSame(busy, governor.acquire("busy", resources));
+    }
+
+    @Test
+    public void testRetiredDirectory() throws AdmissionException
+    {
+        ResourceGovernor governor = new TestGovernor(10 * MB, 0);
+        String directory = model.getParent() + "/";
+        governor.retire(directory);
+
+        Pipeline late = governor.acquire("late", resources);
+        governor.decoder(late);
+        governor.release(late);
+        assertEquals("A pipeline of a retired directory was kept", 0, governor.size());
+
+        Pipeline pinned = governor.acquire("pinned", resources, true);
+        governor.decoder(pinned);
+        governor.release(pinned);
+        assertEquals("A pinned pipeline was not kept", 1, governor.size());
+
+        governor.restore(directory);
+        Pipeline restored = governor.acquire("restored", resources);
+        governor.decoder(restored);
+        governor.release(restored);
+        assertEquals(2, governor.size());
+    }
+
+    @Test
+    public void testMeasureNotBelowEstimate() throws AdmissionException
+    {
+        // Loading the test decoder takes almost no memory, which can not be trusted.
+        ResourceGovernor governor = new TestGovernor(10 * MB, 0);
+        Pipeline first = governor.acquire("config", resources);
+        governor.decoder(first);
+        assertEquals(2 * MB, first.getFootprint());
+        assertEquals(2 * MB, governor.getReserved());
+    }
+
+    @Test
+    public void testConcurrentLoadNotKept() throws Exception
+    {
+        // Loading "a" takes 3 MB and loading "b" 5 MB, on a heap the test keeps count of.
+        AtomicLong heap = new AtomicLong();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        ResourceGovernor governor = new TestGovernor(100 * MB, 0)
+        {
+            @Override
+            protected NLPDecoder load(String configuration)
+            {
+                if (configuration.equals("b"))
+                {
+                    heap.addAndGet(5 * MB);
+                    return new NLPDecoder();
+                }
+                loading.countDown();
+                try
+                {
+                    proceed.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                heap.addAndGet(3 * MB);
+                return new NLPDecoder();
+            }
+
+            @Override
+            protected long usedMemory()
+            {
+                return heap.get();
+            }
+        };
+        String directory = model.getParent() + "/";
+
+        // "b" is loaded while "a" is loading, so neither measure is kept.
+        Pipeline a = governor.acquire("a", resources);
+        Pipeline b = governor.acquire("b", resources);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> first = executor.submit(() -> governor.decoder(a));
+        loading.await(5, TimeUnit.SECONDS);
+        governor.decoder(b);
+        proceed.countDown();
+        first.get();
+        executor.shutdown();
+        assertEquals("The measure was not used for the pipeline", 8 * MB, a.getFootprint());
+        governor.release(a);
+        governor.release(b);
+        governor.retire(directory);
+        governor.restore(directory);
+        Pipeline reloaded = governor.acquire("a", resources);
+        assertEquals("A measure taken during another load was kept", 2 * MB, reloaded.getFootprint());
+        assertEquals(2 * MB, governor.acquire("b", resources).getFootprint());
+
+        // Loaded alone, the measure is kept.
+        governor.decoder(reloaded);
+        governor.release(reloaded);
+        governor.retire(directory);
+        governor.restore(directory);
+        assertEquals(3 * MB, governor.acquire("a", resources).getFootprint());
+    }
+
+    @Test
+    public void testFailedLoadShared() throws Exception
+    {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        ResourceGovernor governor = new TestGovernor(10 * MB, 0)
+        {
+            @Override
+            protected NLPDecoder load(String configuration)
+            {
+                loads.incrementAndGet();
+                loading.countDown();
+                try
+                {
+                    proceed.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("Corrupt model");
+            }
+        };
+        Pipeline pipeline = governor.acquire("config", resources);
+        governor.acquire("config", resources);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<?> first = executor.submit(() -> governor.decoder(pipeline));
+        loading.await();
+        Future<?> second = executor.submit(() -> governor.decoder(pipeline));
+        Thread.sleep(50);
+        proceed.countDown();
+        for (Future<?> result : Arrays.asList(first, second))
+        {
+            try
+            {
+                result.get();
+                fail("A failed load returned a decoder.");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof AdmissionException);
+            }
+        }
+        executor.shutdown();
+        assertEquals("The waiting request loaded the pipeline again", 1, loads.get());
+        assertEquals(0, governor.size());
+    }
+
+    /**
+     * Does not load any models, and is not affected by the memory the test itself uses.
+     */
+    private static class TestGovernor extends ResourceGovernor
+    {
+        TestGovernor(long budget, long timeout)
+        {
+            super(budget, timeout, 2);
+        }
+
+        @Override
+        protected NLPDecoder load(String configuration)
+        {
+            return new NLPDecoder();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.anc.lapps.nlp4j;
+
+import org.junit.After;
+import org.junit.Test;
+import org.lappsgrid.discriminator.Discriminators;
+import org.lappsgrid.serialization.Data;
+import org.lappsgrid.serialization.Serializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class ShardCoordinatorTest
+{
+    private ShardCoordinator coordinator;
+
+    @After
+    public void cleanup()
+    {
+        if (coordinator != null)
+        {
+            coordinator.shutdown();
+        }
+    }
+
+    @Test
+    public void testSplitLines()
+    {
+        coordinator = new ShardCoordinator(Arrays.asList(echo()), 4, 1);
+        List<String> shards = coordinator.split("one\ntwo\nthree\nfour", "line");
+        assertEquals(Arrays.asList("one\ntwo\n", "three\n", "four"), shards);
+        assertEquals("Raw text was split", 1, coordinator.split("one\ntwo\nthree\nfour", "raw").size());
+    }
+
+    @Test
+    public void testSplitSentences()
+    {
+        coordinator = new ShardCoordinator(Arrays.asList(echo()), 4, 1);
+        List<String> shards = coordinator.split("1\ta\n2\tb\n\n1\tc\r\n\r\n1\td\n", "tsv");
+        assertEquals(Arrays.asList("1\ta\n2\tb\n\n", "1\tc\r\n\r\n", "1\td\n"), shards);
+    }
+
+    @Test
+    public void testMergeInOrder() throws ShardException
+    {
+        coordinator = new ShardCoordinator(Arrays.asList(echo(), echo(), echo()), 4, 1);
+        Map<String,String> payload = new LinkedHashMap<>();
+        payload.put("input-1", "one\ntwo\nthree\nfour\nfive\n");
+        payload.put("input-2", "six\n");
+
+        Map<String,String> output = coordinator.execute(request(), payload, "line");
+        assertEquals("ONE\nTWO\nTHREE\nFOUR\nFIVE\n", output.get("output-file-1"));
+        assertEquals("SIX\n", output.get("output-file-2"));
+    }
+
+    @Test
+    public void testModelVersionPassedOn() throws ShardException
+    {
+        List<Object> versions = Collections.synchronizedList(new ArrayList<Object>());
+        Endpoint peer = input -> {
+            versions.add(Serializer.parse(input, Data.class).getParameter(RequestValidator.MODEL_VERSION));
+            return echo().execute(input);
+        };
+        coordinator = new ShardCoordinator(Arrays.asList(peer, peer), 4, 1);
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", "one\ntwo\nthree\n");
+
+        coordinator.execute(request(), payload, "line", "1.1");
+        assertTrue("The input was not split", versions.size() > 1);
+        assertEquals(Collections.nCopies(versions.size(), "1.1"), versions);
+
+        versions.clear();
+        coordinator.execute(request(), payload, "line");
+        assertEquals(Collections.nCopies(versions.size(), null), versions);
+    }
+
+    @Test
+    public void testRetryOnOtherPeer() throws ShardException
+    {
+        AtomicInteger failures = new AtomicInteger();
+        Endpoint failing = input -> {
+            failures.incrementAndGet();
+            throw new IOException("Connection refused");
+        };
+        coordinator = new ShardCoordinator(Arrays.asList(failing, echo()), 100, 2);
+
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", "text");
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals("TEXT", coordinator.execute(request(), payload, "raw").get("output-file-1"));
+        }
+        assertTrue("The failing peer was never tried", failures.get() > 0);
+    }
+
+    @Test
+    public void testAllPeersFail()
+    {
+        Endpoint error = input -> {
+            throw new HttpStatusException("Service unavailable", 503);
+        };
+        coordinator = new ShardCoordinator(Arrays.asList(error, error), 100, 3);
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", "text");
+        try
+        {
+            coordinator.execute(request(), payload, "raw");
+            fail("A failed shard was not reported.");
+        }
+        catch (ShardException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("after 2 attempts"));
+            assertTrue(e.getMessage(), e.getMessage().contains("Service unavailable"));
+        }
+    }
+
+    @Test
+    public void testBusyPeerRetried() throws ShardException
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        Endpoint busy = input -> {
+            attempts.incrementAndGet();
+            return new Data<>(Discriminators.Uri.ERROR,
+                    "The service is at its memory budget of 10 MB. Please try again later.").asJson();
+        };
+        coordinator = new ShardCoordinator(Arrays.asList(busy, echo()), 100, 2);
+
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", "text");
+        assertEquals("TEXT", coordinator.execute(request(), payload, "raw").get("output-file-1"));
+        assertEquals("The busy peer was not tried first", 1, attempts.get());
+
+        // The busy peer is now chosen after the one that answered.
+        assertEquals("TEXT", coordinator.execute(request(), payload, "raw").get("output-file-1"));
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testRejectedShardNotRetried()
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        Endpoint error = input -> {
+            attempts.incrementAndGet();
+            return inputError("Invalid head on line 2 of the TSV input.");
+        };
+        Endpoint refusing = input -> {
+            attempts.incrementAndGet();
+            throw new HttpStatusException("Bad request", 400);
+        };
+
+        for (Endpoint peer : Arrays.asList(error, refusing))
+        {
+            coordinator = new ShardCoordinator(Arrays.asList(peer, peer), 100, 3);
+            Map<String,String> payload = new HashMap<>();
+            payload.put("input", "text");
+            attempts.set(0);
+            try
+            {
+                coordinator.execute(request(), payload, "raw");
+                fail("A rejected shard was not reported.");
+            }
+            catch (ShardException e)
+            {
+                assertEquals("A rejected shard was retried", 1, attempts.get());
+            }
+            coordinator.shutdown();
+        }
+
+        coordinator = new ShardCoordinator(Arrays.asList(error), 100, 3);
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", "text");
+        try
+        {
+            coordinator.execute(request(), payload, "raw");
+            fail("A rejected shard was not reported.");
+        }
+        catch (ShardException e)
+        {
+            assertEquals("The error of the peer was not passed back",
+                    "Invalid head on line 2 of the TSV input.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCancelAfterFailure() throws InterruptedException
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Endpoint peer = input -> {
+            try
+            {
+                if (input.contains("one"))
+                {
+                    // The error comes back once another shard is on its way.
+                    started.await(5, TimeUnit.SECONDS);
+                    return inputError("Invalid input");
+                }
+                started.countDown();
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                cancelled.countDown();
+                throw new IOException("Cancelled");
+            }
+            return echo().execute(input);
+        };
+        coordinator = new ShardCoordinator(Arrays.asList(peer), 4, 1);
+        Map<String,String> payload = new HashMap<>();
+        payload.put("input", "one\ntwo\nthree\nfour\n");
+        try
+        {
+            coordinator.execute(request(), payload, "line");
+            fail("A rejected shard was not reported.");
+        }
+        catch (ShardException e)
+        {
+            assertEquals("Invalid input", e.getMessage());
+        }
+        assertTrue("The other shards were not cancelled", cancelled.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    /** This method creates the error a peer returns for invalid input.
+     */
+    private static String inputError(String message)
+    {
+        Data<String> data = new Data<>(Discriminators.Uri.ERROR, message);
+        data.setParameter(ShardCoordinator.INPUT_ERROR_PARAMETER, true);
+        return data.asJson();
+    }
+
+    private static Data<String> request()
+    {
+        Data<String> data = new Data<>(Discriminators.Uri.GET, "{}");
+        data.setParameter("format", "line");
+        return data;
+    }
+
+    /**
+     * A peer that returns its input in upper case, and checks that it was sent a shard.
+     */
+    private static Endpoint echo()
+    {
+        return input -> {
+            Data<String> data = Serializer.parse(input, Data.class);
+            assertEquals(true, data.getParameter(ShardCoordinator.SHARD_PARAMETER));
+            Map<String,String> payload = Serializer.parse(data.getPayload(), HashMap.class);
+            Map<String,String> output = new HashMap<>();
+            output.put("output-file-1", payload.get("input").toUpperCase());
+            return new Data<>(Discriminators.Uri.LAPPS, Serializer.toJson(output)).asJson();
+        };
+    }
+}
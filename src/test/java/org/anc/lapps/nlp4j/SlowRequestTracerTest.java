@@ -0,0 +1,66 @@
+package org.anc.lapps.nlp4j;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class SlowRequestTracerTest
+{
+    @Test
+    public void testTrace() throws InterruptedException
+    {
+        RequestTrace trace = new RequestTrace();
+        assertFalse("Request ids were reused", trace.getId().equals(new RequestTrace().getId()));
+
+        trace.mark("validate");
+        Thread.sleep(20);
+        trace.mark("decode");
+        trace.finish();
+
+        assertTrue(trace.getStageNanos("decode") >= 20000000L);
+        assertEquals(-1, trace.getStageNanos("load"));
+        assertEquals("The clock did not stop", trace.getElapsedNanos(), trace.getElapsedNanos());
+
+        String text = trace.toString();
+        assertTrue(text, text.startsWith("request=" + trace.getId() + " outcome=ok total="));
+        assertTrue(text, text.contains(" validate=0."));
+        assertTrue(text, text.matches(".* decode=\\d+\\.\\dms$"));
+    }
+
+    @Test
+    public void testSlowRequestsRecorded()
+    {
+        SlowRequestTracer tracer = new SlowRequestTracer(0, 1.0, 2);
+        for (int i = 0; i < 3; i++)
+        {
+            RequestTrace trace = new RequestTrace();
+            trace.setOutcome("error" + i);
+            trace.finish();
+            assertTrue(tracer.record(trace));
+        }
+
+        assertEquals(3, tracer.getRecorded());
+        List<String> recent = tracer.getRecent();
+        assertEquals("Too many traces were kept", 2, recent.size());
+        assertTrue(recent.get(0), recent.get(0).contains("outcome=error1"));
+        assertTrue(recent.get(1), recent.get(1).contains("outcome=error2"));
+    }
+
+    @Test
+    public void testFastRequestsIgnored()
+    {
+        SlowRequestTracer tracer = new SlowRequestTracer(60000, 1.0, 10);
+        RequestTrace trace = new RequestTrace();
+        trace.finish();
+        assertFalse(tracer.record(trace));
+
+        SlowRequestTracer none = new SlowRequestTracer(0, 0.0, 10);
+        assertFalse("A request outside the sample was recorded", none.record(trace));
+        assertTrue(tracer.getRecent().isEmpty());
+    }
+}
@@ -0,0 +1,98 @@
+package org.anc.lapps.nlp4j;
+
+import edu.emory.mathcs.nlp.component.template.node.NLPNode;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Alexandru Mahmoud
+ */
+public class TSVSliceReaderTest
+{
+    @Test
+    public void testSentences()
+    {
+        TSVSliceReader reader = new TSVSliceReader(Arrays.asList(
+                new DecodeRequest.Column(1, "form"),
+                new DecodeRequest.Column(2, "lemma"),
+                new DecodeRequest.Column(3, "pos"),
+                new DecodeRequest.Column(5, "dhead"),
+                new DecodeRequest.Column(6, "deprel")));
+
+        reader.open("1\tI\ti\tPRP\t_\t2\tnsubj\r\n"
+                + "2\tsleep\tsleep\tVBP\t_\t0\troot\r\n"
+                + "\r\n\r\n"
+                + "1\tYes\tyes\tUH\t_\t_\t_\n");
+
+        NLPNode[] nodes = reader.next();
+        assertNotNull(nodes);
+        assertEquals("The root node is missing", 3, nodes.length);
+        assertEquals(2, nodes[2].getID());
+        assertEquals("sleep", nodes[2].getWordForm());
+        assertEquals("i", nodes[1].getLemma());
+        assertEquals("PRP", nodes[1].getPartOfSpeechTag());
+        assertSame(nodes[2], nodes[1].getDependencyHead());
+        assertEquals("nsubj", nodes[1].getDependencyLabel());
+        assertSame(nodes[0], nodes[2].getDependencyHead());
+
+        nodes = reader.next();
+        assertNotNull(nodes);
+        assertEquals(2, nodes.length);
+        assertEquals("Yes", nodes[1].getWordForm());
+        assertNull("A blank head was linked", nodes[1].getDependencyHead());
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testInvalidHeads()
+    {
+        TSVSliceReader reader = new TSVSliceReader(Arrays.asList(
+                new DecodeRequest.Column(0, "form"),
+                new DecodeRequest.Column(1, "dhead"),
+                new DecodeRequest.Column(2, "sheads")));
+
+        reader.open("I\t2\t_\nsleep\t0\t_\n\nYes\t_\t_\nno\tone\t_\n");
+        assertNotNull(reader.next());
+        assertInvalid(reader, "Invalid head on line 5 of the TSV input.\r\nGiven: one");
+
+        reader.open("I\t3\t_\nsleep\t0\t_\n");
+        assertInvalid(reader, "Invalid head on line 1 of the TSV input.\r\nGiven: 3");
+
+        reader.open("I\t_\t2:A0;-1:A1\nsleep\t0\t_\n");
+        assertInvalid(reader, "Invalid head on line 1 of the TSV input.\r\nGiven: -1");
+
+        reader.open("I\t_\t2\nsleep\t0\t_\n");
+        assertInvalid(reader, "Invalid semantic head on line 1 of the TSV input.\r\nGiven: 2");
+    }
+
+    private static void assertInvalid(TSVSliceReader reader, String message)
+    {
+        try
+        {
+            reader.next();
+            fail("An invalid head was accepted.");
+        }
+        catch (InputFormatException e)
+        {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDefaultColumns()
+    {
+        TSVSliceReader reader = new TSVSliceReader(Collections.<DecodeRequest.Column>emptyList());
+        reader.open("Hello\textra\nworld");
+        NLPNode[] nodes = reader.next();
+        assertEquals(3, nodes.length);
+        assertEquals("Hello", nodes[1].getWordForm());
+        assertEquals("world", nodes[2].getWordForm());
+        assertNull(nodes[1].getLemma());
+        assertNull(reader.next());
+    }
+}